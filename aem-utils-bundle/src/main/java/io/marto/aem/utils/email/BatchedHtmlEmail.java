@@ -0,0 +1,118 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.email;
+
+import static java.lang.String.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.EmailException;
+
+/**
+ * An email delivered to its BCC recipients in chunks, one envelope per chunk. The message is built and encoded once, the encoded bytes are then
+ * reused as is for every envelope, and all envelopes go over one connection. Unless it has <tt>To</tt> recipients, the message is addressed to
+ * {@value #UNDISCLOSED_RECIPIENTS} as a message without a <tt>To</tt> header is penalised by spam filters.
+ */
+class BatchedHtmlEmail extends PartsHtmlEmail {
+
+    static final String UNDISCLOSED_RECIPIENTS = "undisclosed-recipients:;";
+    private static final String[] IGNORED_HEADERS = { "Bcc" };
+
+    private final int recipientsPerEnvelope;
+    private byte[] encoded;
+    private int envelopes;
+
+    BatchedHtmlEmail(int recipientsPerEnvelope) {
+        this.recipientsPerEnvelope = Math.max(1, recipientsPerEnvelope);
+    }
+
+    /**
+     * @return the number of envelopes delivered by the last send
+     */
+    int getEnvelopes() {
+        return envelopes;
+    }
+
+    /**
+     * @return the encoded message, without recipients, shared by all envelopes
+     */
+    byte[] getEncoded() {
+        return encoded;
+    }
+
+    @Override
+    public void buildMimeMessage() throws EmailException {
+        if (encoded != null) {
+            return;
+        }
+        super.buildMimeMessage();
+        try {
+            final MimeMessage message = getMimeMessage();
+            if (message.getHeader("To") == null) {
+                message.setHeader("To", UNDISCLOSED_RECIPIENTS);
+            }
+            message.saveChanges();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            message.writeTo(out, IGNORED_HEADERS);
+            encoded = out.toByteArray();
+        } catch (MessagingException|IOException e) {
+            throw new EmailException("Failed to encode the email", e);
+        }
+    }
+
+    @Override
+    public String sendMimeMessage() throws EmailException {
+        buildMimeMessage();
+        final List<Address> recipients = getRecipients();
+        try {
+            final Session session = getMailSession();
+            final MimeMessage message = new MimeMessage(session, new ByteArrayInputStream(encoded));
+            final Transport transport = session.getTransport();
+            transport.connect();
+            try {
+                envelopes = 0;
+                for (int from = 0; from < recipients.size(); from += recipientsPerEnvelope) {
+                    final List<Address> chunk = recipients.subList(from, Math.min(recipients.size(), from + recipientsPerEnvelope));
+                    transport.sendMessage(message, chunk.toArray(new Address[chunk.size()]));
+                    envelopes++;
+                }
+            } finally {
+                transport.close();
+            }
+            return message.getMessageID();
+        } catch (MessagingException e) {
+            throw new EmailException(format("Failed to send email after %d envelope(s)", envelopes), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Address> getRecipients() {
+        return Arrays.asList((Address[]) getBccAddresses().toArray(new Address[0]));
+    }
+}
@@ -0,0 +1,57 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.email;
+
+/**
+ * Binary content that has been base64 encoded, ready to be written as the body of a MIME part. Instances are shared between messages
+ * by {@link MailPartCache} and are immutable.
+ */
+public final class EncodedPart {
+    private final String hash;
+    private final String contentType;
+    private final byte[] encoded;
+
+    EncodedPart(String hash, String contentType, byte[] encoded) {
+        this.hash = hash;
+        this.contentType = contentType;
+        this.encoded = encoded;
+    }
+
+    /**
+     * @return the SHA-256 hash (hex) of the content before encoding
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the number of bytes of the encoded content
+     */
+    public int getEncodedSize() {
+        return encoded.length;
+    }
+
+    byte[] getEncoded() {
+        return encoded;
+    }
+}
@@ -24,10 +24,14 @@ import io.marto.aem.utils.freemarker.FreemarkerTemplateFactory;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.net.URL;
+import java.util.Locale;
 
 import org.apache.commons.mail.EmailException;
 import org.apache.commons.mail.HtmlEmail;
 import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.day.cq.mailer.MessageGateway;
 import com.day.cq.mailer.MessageGatewayService;
@@ -38,12 +42,104 @@ import freemarker.template.TemplateException;
  * A helper class used to send HTML formatted emails based on freemarker templates stored as resources in an OSGi bundle.
  */
 public class FreemarkerTemplatedMailer {
+    /**
+     * The default size of the cache of encoded inline images and attachments.
+     */
+    public static final long DEFAULT_PART_CACHE_BYTES = 16 * 1024 * 1024;
+
     private final MessageGatewayService messageGatewayService;
     private final FreemarkerTemplateFactory templateFactory;
+    private final MailPartCache partCache;
 
+    /**
+     * @param messageGatewayService  the service used to obtain the html email gateway
+     * @param bundle                 the OSGi bundle the templates are loaded from, the templates in its index are parsed up front
+     *                               (see {@link FreemarkerTemplateFactory#preload()})
+     */
     public FreemarkerTemplatedMailer(MessageGatewayService messageGatewayService, Bundle bundle) {
-        this.templateFactory = new FreemarkerTemplateFactory(bundle);
+        this(messageGatewayService, preload(new FreemarkerTemplateFactory(bundle)));
+    }
+
+    /**
+     * @param messageGatewayService  the service used to obtain the html email gateway
+     * @param templateFactory        the factory used to render emails, eg: one that also loads templates from the repository
+     */
+    public FreemarkerTemplatedMailer(MessageGatewayService messageGatewayService, FreemarkerTemplateFactory templateFactory) {
+        this(messageGatewayService, templateFactory, new MailPartCache(DEFAULT_PART_CACHE_BYTES));
+    }
+
+    /**
+     * @param messageGatewayService  the service used to obtain the html email gateway
+     * @param templateFactory        the factory used to render emails
+     * @param partCache              the cache of encoded inline images and attachments, it can be shared between mailers
+     */
+    public FreemarkerTemplatedMailer(MessageGatewayService messageGatewayService, FreemarkerTemplateFactory templateFactory, MailPartCache partCache) {
+        this.templateFactory = templateFactory;
         this.messageGatewayService = messageGatewayService;
+        this.partCache = partCache;
+    }
+
+    private static FreemarkerTemplateFactory preload(FreemarkerTemplateFactory templateFactory) {
+        try {
+            LOGGER.debug("Preloaded {} templates", templateFactory.preload());
+        } catch (TemplateException|IOException e) {
+            LOGGER.warn("Failed to preload templates, they are parsed on first use instead", e);
+        }
+        return templateFactory;
+    }
+
+    /**
+     * An image the email body refers to as <tt>&lt;img src="cid:<i>contentId</i>"&gt;</tt>. The image is read and encoded once and then shared by all emails.
+     *
+     * @param contentId    the content id of the image
+     * @param content      the location of the image, eg: <tt>bundle.getEntry("/images/logo.png")</tt>
+     * @param contentType  the MIME type of the image
+     * @return the inline part to pass to {@link #sendEmail(String[], String, String, String, Locale, Object, MailPart...)}
+     * @throws EmailException  if the image can't be read
+     */
+    public MailPart inline(String contentId, URL content, String contentType) throws EmailException {
+        return MailPart.inline(contentId, fileName(content), encode(content, contentType));
+    }
+
+    /**
+     * An attachment read from <tt>content</tt>. The attachment is read and encoded once and then shared by all emails.
+     *
+     * @param name         the file name of the attachment
+     * @param content      the location of the attachment
+     * @param contentType  the MIME type of the attachment
+     * @return the attachment to pass to {@link #sendEmail(String[], String, String, String, Locale, Object, MailPart...)}
+     * @throws EmailException  if the attachment can't be read
+     */
+    public MailPart attachment(String name, URL content, String contentType) throws EmailException {
+        return MailPart.attachment(name, encode(content, contentType));
+    }
+
+    /**
+     * An attachment of generated content. Attachments with identical content share one encoded copy.
+     *
+     * @param name         the file name of the attachment
+     * @param content      the content of the attachment
+     * @param contentType  the MIME type of the attachment
+     * @return the attachment to pass to {@link #sendEmail(String[], String, String, String, Locale, Object, MailPart...)}
+     */
+    public MailPart attachment(String name, byte[] content, String contentType) {
+        return MailPart.attachment(name, partCache.encode(content, contentType));
+    }
+
+    private EncodedPart encode(URL content, String contentType) throws EmailException {
+        if (content == null) {
+            throw new EmailException("Can't embed missing content");
+        }
+        try {
+            return partCache.encode(content, contentType);
+        } catch (IOException e) {
+            throw new EmailException(format("Failed to read '%s'", content), e);
+        }
+    }
+
+    private static String fileName(URL content) {
+        final String path = content.getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
     }
 
     /**
@@ -56,23 +152,98 @@ public class FreemarkerTemplatedMailer {
      * @throws EmailException when an email can't be sent because of email server issues or if the message can't be rendered for what ever reason.
      */
     public void sendEmail(final String[] recipients, String sender, final String subject, String template, Object model) throws EmailException {
+        sendEmail(recipients, sender, subject, template, null, model);
+    }
+
+    /**
+     * Same as {@link #sendEmail(String[], String, String, String, Object)} but renders the variant of the template for <tt>locale</tt>.
+     *
+     * @param recipients    list of recipients who will be sent the email
+     * @param sender        the from email address
+     * @param subject       the subject line
+     * @param template      the path to the template (the view)
+     * @param locale        the locale of the email, or null for the default template
+     * @param model         the detail body of the email (the model)
+     *
+     * @throws EmailException when an email can't be sent because of email server issues or if the message can't be rendered for what ever reason.
+     * @see FreemarkerTemplateFactory#render(String, Locale, Object, java.io.Writer)
+     */
+    public void sendEmail(final String[] recipients, String sender, final String subject, String template, Locale locale, Object model) throws EmailException {
+        sendEmail(recipients, sender, subject, template, locale, model, new MailPart[0]);
+    }
+
+    /**
+     * Same as {@link #sendEmail(String[], String, String, String, Locale, Object)} but with inline images and attachments.
+     *
+     * @param recipients    list of recipients who will be sent the email
+     * @param sender        the from email address
+     * @param subject       the subject line
+     * @param template      the path to the template (the view)
+     * @param locale        the locale of the email, or null for the default template
+     * @param model         the detail body of the email (the model)
+     * @param parts         the inline images and attachments, see {@link #inline} and {@link #attachment}
+     *
+     * @throws EmailException when an email can't be sent because of email server issues or if the message can't be rendered for what ever reason.
+     */
+    public void sendEmail(final String[] recipients, String sender, final String subject, String template, Locale locale, Object model, MailPart... parts) throws EmailException {
         try {
-            final HtmlEmail email = constructEmail(recipients, sender, subject, template, model);
-            final MessageGateway<HtmlEmail> gateway = messageGatewayService.getGateway(HtmlEmail.class);
-            if (gateway != null) {
-                gateway.send(email);
-            } else {
-                throw new EmailException("Could not obtain message gateway for html emails");
+            final HtmlEmail email = constructEmail(parts.length > 0 ? withParts(new PartsHtmlEmail(), parts) : new HtmlEmail(), sender, subject, template, locale, model);
+            for(String recipient : recipients) {
+                email.addTo(recipient);
             }
+            send(email);
         } catch (EmailException e) {
             throw new EmailException(format("Fatal error trying to send user feedback to %s", join(recipients)), e);
         }
     }
 
-    private HtmlEmail constructEmail(final String[] recipients, String sender, final String subject, String template, Object model) throws EmailException {
-        final HtmlEmail email = new HtmlEmail();
+    /**
+     * Send one identical email to many recipients. The message is rendered and MIME encoded once and then delivered, over a single connection, as one
+     * envelope per chunk of <tt>recipientsPerEnvelope</tt> recipients. Recipients are only named in the envelopes, never in the message headers,
+     * so they can't see each other.
+     *
+     * @param recipients             list of recipients who will be sent the email
+     * @param recipientsPerEnvelope  the maximum number of recipients of each envelope, eg: the RCPT limit of the mail server
+     * @param sender                 the from email address
+     * @param subject                the subject line
+     * @param template               the path to the template (the view)
+     * @param locale                 the locale of the email, or null for the default template
+     * @param model                  the detail body of the email (the model)
+     * @param parts                  the inline images and attachments, see {@link #inline} and {@link #attachment}
+     *
+     * @throws EmailException when an email can't be sent because of email server issues or if the message can't be rendered for what ever reason.
+     */
+    public void sendBulkEmail(final String[] recipients, int recipientsPerEnvelope, String sender, final String subject, String template, Locale locale, Object model,
+            MailPart... parts) throws EmailException {
+        try {
+            final HtmlEmail email = constructEmail(withParts(new BatchedHtmlEmail(recipientsPerEnvelope), parts), sender, subject, template, locale, model);
+            for(String recipient : recipients) {
+                email.addBcc(recipient);
+            }
+            send(email);
+        } catch (EmailException e) {
+            throw new EmailException(format("Fatal error trying to send bulk email to %d recipients", recipients.length), e);
+        }
+    }
 
-        email.setMsg(renderBody(template, model));
+    private void send(HtmlEmail email) throws EmailException {
+        final MessageGateway<HtmlEmail> gateway = messageGatewayService.getGateway(HtmlEmail.class);
+        if (gateway != null) {
+            gateway.send(email);
+        } else {
+            throw new EmailException("Could not obtain message gateway for html emails");
+        }
+    }
+
+    private static PartsHtmlEmail withParts(PartsHtmlEmail email, MailPart[] parts) {
+        for (MailPart part : parts) {
+            email.addPart(part);
+        }
+        return email;
+    }
+
+    private HtmlEmail constructEmail(final HtmlEmail email, String sender, final String subject, String template, Locale locale, Object model) throws EmailException {
+        email.setMsg(renderBody(template, locale, model));
         if (subject != null) {
         	email.setSubject(subject);
         }
@@ -80,17 +251,13 @@ public class FreemarkerTemplatedMailer {
         	email.setFrom(sender);
         }
 
-        for(String recipient : recipients) {
-            email.addTo(recipient);
-        }
-
         return email;
     }
 
-    private String renderBody(String template, Object model) throws EmailException {
+    private String renderBody(String template, Locale locale, Object model) throws EmailException {
         try {
             StringWriter writer = new StringWriter();
-            templateFactory.render(template, model, writer);
+            templateFactory.render(template, locale, model, writer);
             return writer.toString();
         } catch (TemplateException|IOException e) {
             throw new EmailException(format("Failed to render email template '%s'", template), e);
@@ -103,4 +270,6 @@ public class FreemarkerTemplatedMailer {
     public void clear() {
         templateFactory.clear();
     }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FreemarkerTemplatedMailer.class);
 }
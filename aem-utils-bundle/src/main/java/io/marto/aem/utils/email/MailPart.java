@@ -0,0 +1,78 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.email;
+
+import javax.mail.Part;
+
+/**
+ * An inline image or attachment of a templated email. Create instances with {@link FreemarkerTemplatedMailer#inline} and
+ * {@link FreemarkerTemplatedMailer#attachment}.
+ */
+public final class MailPart {
+    private final String disposition;
+    private final String name;
+    private final String contentId;
+    private final EncodedPart content;
+
+    private MailPart(String disposition, String name, String contentId, EncodedPart content) {
+        this.disposition = disposition;
+        this.name = name;
+        this.contentId = contentId;
+        this.content = content;
+    }
+
+    /**
+     * @param contentId  the content id the HTML refers to the part with, eg: <tt>&lt;img src="cid:logo"&gt;</tt> for <tt>logo</tt>
+     * @param name       the file name of the part
+     * @param content    the encoded content
+     * @return an inline part
+     */
+    public static MailPart inline(String contentId, String name, EncodedPart content) {
+        return new MailPart(Part.INLINE, name, contentId, content);
+    }
+
+    /**
+     * @param name     the file name of the attachment
+     * @param content  the encoded content
+     * @return an attachment
+     */
+    public static MailPart attachment(String name, EncodedPart content) {
+        return new MailPart(Part.ATTACHMENT, name, null, content);
+    }
+
+    public boolean isInline() {
+        return Part.INLINE.equals(disposition);
+    }
+
+    public String getDisposition() {
+        return disposition;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContentId() {
+        return contentId;
+    }
+
+    public EncodedPart getContent() {
+        return content;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.email;
+
+import static java.lang.String.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * A cache of base64 encoded email parts keyed by the hash of their content, so identical images and attachments are only read and encoded
+ * once no matter how many messages (or threads) use them. The cache is bounded by the total size of the encoded content and evicts the
+ * least recently used parts first.
+ */
+public class MailPartCache {
+
+    /**
+     * The maximum number of URLs whose content hash is remembered.
+     */
+    public static final int URL_INDEX_SIZE = 1024;
+
+    private final long maxEncodedBytes;
+    private long encodedBytes;
+    private final LinkedHashMap<String, EncodedPart> parts = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, String> urlIndex = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > URL_INDEX_SIZE;
+        }
+    };
+
+    /**
+     * @param maxEncodedBytes  the maximum number of encoded bytes kept in the cache
+     */
+    public MailPartCache(long maxEncodedBytes) {
+        this.maxEncodedBytes = maxEncodedBytes;
+    }
+
+    /**
+     * @param content      the raw content
+     * @param contentType  the MIME type of the content
+     * @return the encoded part, shared with any other part of identical content and type
+     */
+    public EncodedPart encode(byte[] content, String contentType) {
+        final String hash = hash(content);
+        final String key = hash + ":" + contentType;
+        synchronized (this) {
+            final EncodedPart cached = parts.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final EncodedPart part = new EncodedPart(hash, contentType, Base64.encodeBase64Chunked(content));
+        synchronized (this) {
+            final EncodedPart raced = parts.get(key);
+            if (raced != null) {
+                return raced;
+            }
+            if (part.getEncodedSize() <= maxEncodedBytes) {
+                parts.put(key, part);
+                encodedBytes += part.getEncodedSize();
+                evict();
+            }
+        }
+        return part;
+    }
+
+    /**
+     * Same as {@link #encode(byte[], String)} but reads the content from <tt>url</tt>. The content of a URL (eg: a bundle entry) is assumed not to change,
+     * so it is only read again once its part has been evicted.
+     *
+     * @param url          the location of the content
+     * @param contentType  the MIME type of the content
+     * @return the encoded part
+     * @throws IOException  if the content can't be read
+     */
+    public EncodedPart encode(URL url, String contentType) throws IOException {
+        final String location = url.toString();
+        synchronized (this) {
+            final String key = urlIndex.get(location);
+            final EncodedPart cached = key == null ? null : parts.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final EncodedPart part = encode(read(url), contentType);
+        synchronized (this) {
+            urlIndex.put(location, part.getHash() + ":" + contentType);
+        }
+        return part;
+    }
+
+    /**
+     * @return the number of encoded bytes held by the cache
+     */
+    public synchronized long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * Remove all parts from the cache
+     */
+    public synchronized void clear() {
+        parts.clear();
+        urlIndex.clear();
+        encodedBytes = 0;
+    }
+
+    private void evict() {
+        final Iterator<EncodedPart> eldest = parts.values().iterator();
+        while (encodedBytes > maxEncodedBytes && eldest.hasNext()) {
+            encodedBytes -= eldest.next().getEncodedSize();
+            eldest.remove();
+        }
+    }
+
+    private static byte[] read(URL url) throws IOException {
+        try (InputStream in = url.openStream()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(format("SHA-256 is not supported: %s", e.getMessage()), e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.email;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.activation.DataHandler;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.HtmlEmail;
+
+/**
+ * An {@link HtmlEmail} whose inline images and attachments are already base64 encoded. The parts are added to the message once commons-email
+ * has built it: attachments alongside the body, inline images in a <tt>multipart/related</tt> together with the body.
+ */
+class PartsHtmlEmail extends HtmlEmail {
+
+    private final List<MailPart> parts = new ArrayList<>();
+
+    void addPart(MailPart part) {
+        parts.add(part);
+    }
+
+    @Override
+    public void buildMimeMessage() throws EmailException {
+        super.buildMimeMessage();
+        if (parts.isEmpty()) {
+            return;
+        }
+        try {
+            final MimeMultipart root = getContainer();
+            final MimeMultipart related = new MimeMultipart("related");
+            for (MailPart part : parts) {
+                if (part.isInline()) {
+                    related.addBodyPart(toBodyPart(part));
+                } else {
+                    root.addBodyPart(toBodyPart(part));
+                }
+            }
+            if (related.getCount() > 0) {
+                final BodyPart body = root.getBodyPart(0);
+                root.removeBodyPart(0);
+                related.addBodyPart(body, 0);
+                final MimeBodyPart relatedPart = new MimeBodyPart();
+                relatedPart.setContent(related);
+                root.addBodyPart(relatedPart, 0);
+            }
+        } catch (MessagingException e) {
+            throw new EmailException("Failed to add inline images and attachments", e);
+        }
+    }
+
+    private static MimeBodyPart toBodyPart(MailPart part) throws MessagingException {
+        final PreencodedMimeBodyPart body = new PreencodedMimeBodyPart("base64");
+        body.setDataHandler(new DataHandler(new ByteArrayDataSource(part.getContent().getEncoded(), part.getContent().getContentType())));
+        body.setDisposition(part.getDisposition());
+        if (part.getName() != null) {
+            body.setFileName(part.getName());
+        }
+        if (part.getContentId() != null) {
+            body.setContentID("<" + part.getContentId() + ">");
+        }
+        return body;
+    }
+}
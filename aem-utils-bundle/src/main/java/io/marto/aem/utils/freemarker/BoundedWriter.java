@@ -0,0 +1,71 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A writer that charges everything written to it to a {@link RenderBudget}, failing once the render exceeds its {@link RenderLimits}.
+ */
+class BoundedWriter extends Writer {
+
+    private final Writer delegate;
+    private final RenderBudget budget;
+
+    BoundedWriter(Writer delegate, RenderBudget budget) {
+        this.delegate = delegate;
+        this.budget = budget;
+    }
+
+    /**
+     * @return the writer output is written to
+     */
+    Writer getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        budget.charge(len);
+        delegate.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        budget.charge(len);
+        delegate.write(str, off, len);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        budget.charge(1);
+        delegate.write(c);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
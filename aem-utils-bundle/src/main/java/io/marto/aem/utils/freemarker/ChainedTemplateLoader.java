@@ -0,0 +1,90 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import freemarker.cache.TemplateLoader;
+
+/**
+ * A template loader that returns the template of the first loader that has it. Unlike freemarker's <tt>MultiTemplateLoader</tt> it does not
+ * remember which loader a template came from, so a template added to an earlier loader overrides a later one as soon as it is evicted from the cache.
+ */
+class ChainedTemplateLoader implements TemplateLoader {
+
+    private final TemplateLoader[] loaders;
+
+    ChainedTemplateLoader(TemplateLoader... loaders) {
+        this.loaders = loaders;
+    }
+
+    @Override
+    public Object findTemplateSource(String name) throws IOException {
+        for (TemplateLoader loader : loaders) {
+            final Object source = loader.findTemplateSource(name);
+            if (source != null) {
+                return new ChainedSource(loader, source);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long getLastModified(Object templateSource) {
+        final ChainedSource source = (ChainedSource) templateSource;
+        return source.loader.getLastModified(source.source);
+    }
+
+    @Override
+    public Reader getReader(Object templateSource, String encoding) throws IOException {
+        final ChainedSource source = (ChainedSource) templateSource;
+        return source.loader.getReader(source.source, encoding);
+    }
+
+    @Override
+    public void closeTemplateSource(Object templateSource) throws IOException {
+        final ChainedSource source = (ChainedSource) templateSource;
+        source.loader.closeTemplateSource(source.source);
+    }
+
+    private static final class ChainedSource {
+        private final TemplateLoader loader;
+        private final Object source;
+
+        ChainedSource(TemplateLoader loader, Object source) {
+            this.loader = loader;
+            this.source = source;
+        }
+
+        @Override
+        public int hashCode() {
+            return source.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ChainedSource)) {
+                return false;
+            }
+            final ChainedSource other = (ChainedSource) obj;
+            return loader == other.loader && source.equals(other.source);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+import org.apache.commons.codec.CharEncoding;
+
+import freemarker.core.Environment;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateDirectiveModel;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateScalarModel;
+
+/**
+ * The <tt>&lt;@fragment template="/templates/section.ftl"/&gt;</tt> directive. It marks an independent section of a template that can be rendered
+ * concurrently with the rest of the template (see {@link FreemarkerTemplateFactory#setFragmentExecutor}). A forked fragment is rendered with the data model
+ * of the render, it does not see variables assigned by the including template. When fragments are not rendered concurrently, or the directive is used
+ * where output is captured (eg: within an <tt>&lt;#assign&gt;</tt>), the fragment is simply included.
+ */
+class FragmentDirective implements TemplateDirectiveModel {
+
+    static final String NAME = "fragment";
+    static final FragmentDirective INSTANCE = new FragmentDirective();
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void execute(Environment env, Map params, TemplateModel[] loopVars, TemplateDirectiveBody body) throws TemplateException, IOException {
+        final Object template = params.get("template");
+        if (!(template instanceof TemplateScalarModel)) {
+            throw new TemplateModelException("The fragment directive requires a 'template' parameter");
+        }
+        final String templatePath = ((TemplateScalarModel) template).getAsString();
+        final Writer out = env.getOut() instanceof BoundedWriter ? ((BoundedWriter) env.getOut()).getDelegate() : env.getOut();
+        if (!(out instanceof FragmentWriter) || !((FragmentWriter) out).fork(templatePath)) {
+            env.include(env.getTemplateForInclusion(templatePath, CharEncoding.UTF_8, true));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import freemarker.template.TemplateException;
+
+/**
+ * The writer a template is rendered to when fragments may be rendered concurrently. Output is written through until the first fragment is forked,
+ * after that it is kept in order with the pending fragments and written out by {@link #join()}.
+ */
+class FragmentWriter extends Writer {
+
+    private final Writer out;
+    private final ExecutorService executor;
+    private final FreemarkerTemplateFactory factory;
+    private final Object model;
+    private final RenderBudget budget;
+    private final List<Object> segments = new ArrayList<>();
+    private StringBuilder pending;
+
+    /**
+     * @param budget  the budget of the render fragments are charged to, or null if it has no limits
+     */
+    FragmentWriter(Writer out, ExecutorService executor, FreemarkerTemplateFactory factory, Object model, RenderBudget budget) {
+        this.out = out;
+        this.executor = executor;
+        this.factory = factory;
+        this.model = model;
+        this.budget = budget;
+    }
+
+    /**
+     * Start rendering <tt>templatePath</tt> with the data model of this render on the executor.
+     *
+     * @return false if the executor would not accept the fragment and it should be rendered inline instead
+     */
+    boolean fork(final String templatePath) {
+        final Future<String> fragment;
+        try {
+            fragment = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return factory.renderFragment(templatePath, model, budget);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        if (pending != null && pending.length() > 0) {
+            segments.add(pending.toString());
+        }
+        segments.add(fragment);
+        pending = new StringBuilder();
+        return true;
+    }
+
+    /**
+     * Wait for all forked fragments and write them, and the output in between them, in order. Output is written as is, it was already charged to
+     * the budget as it was rendered.
+     */
+    void join() throws TemplateException, IOException {
+        try {
+            for (Object segment : segments) {
+                if (segment instanceof Future) {
+                    out.write(get((Future<?>) segment).toString());
+                } else {
+                    out.write((String) segment);
+                }
+            }
+            if (pending != null) {
+                out.write(pending.toString());
+            }
+        } catch (TimeoutException e) {
+            throw budget.timedOut();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for template fragments");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TemplateException) {
+                throw (TemplateException) e.getCause();
+            } else if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new TemplateException("Failed to render template fragment", e, null);
+        } finally {
+            cancel();
+        }
+    }
+
+    private Object get(Future<?> fragment) throws InterruptedException, ExecutionException, TimeoutException {
+        if (budget == null || !budget.hasDeadline()) {
+            return fragment.get();
+        }
+        return fragment.get(budget.getRemainingNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stop rendering any fragments that are still pending.
+     */
+    void cancel() {
+        for (Object segment : segments) {
+            if (segment instanceof Future) {
+                ((Future<?>) segment).cancel(true);
+            }
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (pending == null) {
+            out.write(cbuf, off, len);
+        } else {
+            pending.append(cbuf, off, len);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (pending == null) {
+            out.write(str, off, len);
+        } else {
+            pending.append(str, off, off + len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (pending == null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
@@ -20,27 +20,67 @@ package io.marto.aem.utils.freemarker;
 
 import static java.lang.String.format;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
 
 import org.apache.commons.codec.CharEncoding;
 import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import freemarker.cache.TemplateLoader;
 import freemarker.cache.URLTemplateLoader;
 import freemarker.template.Configuration;
-import freemarker.template.DefaultObjectWrapper;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 
 
 /**
- * A freemarker template processing factory that loads templates (stored as resources in an OSGi bundle) and renders them.
+ * A freemarker template processing factory that loads templates (stored as resources in an OSGi bundle and optionally in the repository) and renders them.
  */
 public class FreemarkerTemplateFactory {
 
+    /**
+     * The maximum number of (template, locale) pairs whose resolved template path is remembered.
+     */
+    public static final int LOCALIZED_CACHE_SIZE = 1024;
+
+    /**
+     * The bundle entry listing the templates to {@link #preload()}, generated by the <tt>index-templates</tt> goal of the aem-utils-maven-plugin.
+     */
+    public static final String TEMPLATE_INDEX = "META-INF/freemarker/templates.idx";
+
+    private final Bundle bundle;
     private final Configuration config;
+    private final TemplateMetrics metrics = new TemplateMetrics();
+    private volatile RenderLimits renderLimits = RenderLimits.UNLIMITED;
+    private volatile ExecutorService fragmentExecutor;
+    private volatile boolean minifyHtml;
+    private final JcrTemplateLoader repositoryLoader;
+    private final EventListener repositoryListener;
+    private final ConcurrentMap<LocalizedKey, String> localizedPaths = new ConcurrentHashMap<>();
 
     /**
      * Create an instance that loads templates from an OSGi <tt>bundle</tt>.
@@ -48,42 +88,411 @@ public class FreemarkerTemplateFactory {
      * @param bundle  the OSGi bundle used to load all templates from
      */
     public FreemarkerTemplateFactory(final Bundle bundle) {
-       this.config = new Configuration();
-       config.setObjectWrapper(new DefaultObjectWrapper());
+       this.bundle = bundle;
+       this.config = createConfiguration();
+       this.repositoryLoader = null;
+       this.repositoryListener = null;
+       config.setTemplateLoader(new LoopGuardTemplateLoader(createBundleLoader(bundle)));
+    }
+
+    /**
+     * Create an instance that loads templates from the repository, falling back to an OSGi <tt>bundle</tt> for templates that are not in the repository.
+     * Templates are cached until they change in the repository, upon which only the affected templates are evicted. Call {@link #close()} once done
+     * with the factory to stop listening for repository changes.
+     *
+     * @param bundle            the OSGi bundle used to load templates not found in the repository
+     * @param repositoryLoader  the loader used to load templates from the repository
+     * @throws RepositoryException  if the factory can't listen for changes to the repository templates
+     */
+    public FreemarkerTemplateFactory(final Bundle bundle, final JcrTemplateLoader repositoryLoader) throws RepositoryException {
+       this.bundle = bundle;
+       this.config = createConfiguration();
+       this.repositoryLoader = repositoryLoader;
+       this.repositoryListener = new EventListener() {
+          @Override
+          public void onEvent(EventIterator events) {
+             evict(events);
+          }
+       };
+       config.setTemplateLoader(new LoopGuardTemplateLoader(new ChainedTemplateLoader(repositoryLoader, createBundleLoader(bundle))));
+       getObservationManager().addEventListener(repositoryListener, REPOSITORY_EVENTS, repositoryLoader.getRootPath(), true, null, null, false);
+    }
+
+    private static Configuration createConfiguration() {
+       final Configuration config = new Configuration();
+       config.setObjectWrapper(new FutureAwareObjectWrapper());
+       config.setSharedVariable(FragmentDirective.NAME, FragmentDirective.INSTANCE);
+       config.setSharedVariable(LoopGuardDirective.NAME, LoopGuardDirective.INSTANCE);
        config.setTemplateUpdateDelay(Integer.MAX_VALUE);
        config.setLocalizedLookup(false);
-       config.setTemplateLoader(new URLTemplateLoader() {
+       return config;
+    }
+
+    private static TemplateLoader createBundleLoader(final Bundle bundle) {
+       return new URLTemplateLoader() {
           @Override
           protected URL getURL(String url) {
              return bundle.getEntry(url);
           }
-       });
+       };
+    }
+
+    private ObservationManager getObservationManager() throws RepositoryException {
+       return repositoryLoader.getSession().getWorkspace().getObservationManager();
+    }
+
+    /**
+     * Stop listening for changes to repository templates. Does nothing if templates are only loaded from a bundle.
+     */
+    public void close() {
+       if (repositoryListener != null) {
+          try {
+             getObservationManager().removeEventListener(repositoryListener);
+          } catch (RepositoryException e) {
+             LOGGER.warn("Failed to stop listening for template changes under '{}'", repositoryLoader.getRootPath(), e);
+          }
+       }
+    }
+
+    private void evict(EventIterator events) {
+       try {
+          repositoryLoader.refresh();
+       } catch (RepositoryException e) {
+          LOGGER.warn("Failed to refresh the template session, changed templates may be reloaded stale", e);
+       }
+       boolean structural = false;
+       while (events.hasNext()) {
+          final Event event = events.nextEvent();
+          structural |= event.getType() == Event.NODE_ADDED || event.getType() == Event.NODE_REMOVED;
+          try {
+             final String name = repositoryLoader.toTemplateName(event.getPath());
+             if (name != null && name.lastIndexOf('.') > name.lastIndexOf('/')) {
+                LOGGER.debug("Evicting template '{}'", name);
+                config.removeTemplateFromCache(name, config.getLocale(), CharEncoding.UTF_8, true);
+             } else if (name != null) {
+                LOGGER.debug("Clearing template cache on change to '{}'", name);
+                config.clearTemplateCache();
+             }
+          } catch (RepositoryException|IOException e) {
+             LOGGER.warn("Failed to evict changed template, clearing template cache", e);
+             config.clearTemplateCache();
+          }
+       }
+       if (structural) {
+          localizedPaths.clear();
+       }
     }
 
     /**
      * Clear the template cache
      */
     public void clear() {
+       localizedPaths.clear();
        this.config.clearTemplateCache();
        this.config.clearEncodingMap();
        this.config.clearSharedVariables();
+       this.config.setSharedVariable(FragmentDirective.NAME, FragmentDirective.INSTANCE);
+       this.config.setSharedVariable(LoopGuardDirective.NAME, LoopGuardDirective.INSTANCE);
+    }
+
+    /**
+     * Parse every template listed in the bundle's {@link #TEMPLATE_INDEX} so that the first render of a template does not pay for parsing it.
+     * Call it on activation, it does nothing if the bundle has no index.
+     *
+     * @return the number of templates preloaded
+     * @throws TemplateException  if a listed template can't be loaded
+     * @throws IOException        if the index can't be read
+     */
+    public int preload() throws TemplateException, IOException {
+       final URL index = bundle.getEntry(TEMPLATE_INDEX);
+       if (index == null) {
+          return 0;
+       }
+       int count = 0;
+       try (BufferedReader reader = new BufferedReader(new InputStreamReader(index.openStream(), StandardCharsets.UTF_8))) {
+          for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+             if (!line.trim().isEmpty()) {
+                getTemplate(line.trim());
+                count++;
+             }
+          }
+       }
+       return count;
+    }
+
+    /**
+     * @param renderLimits  the limits applied to every subsequent render, {@link RenderLimits#UNLIMITED} by default
+     */
+    public void setRenderLimits(RenderLimits renderLimits) {
+       this.renderLimits = renderLimits == null ? RenderLimits.UNLIMITED : renderLimits;
+    }
+
+    /**
+     * @return the limits applied to every render
+     */
+    public RenderLimits getRenderLimits() {
+       return renderLimits;
+    }
+
+    /**
+     * Render sections marked with <tt>&lt;@fragment template="..."/&gt;</tt> concurrently on <tt>executor</tt> and stitch their output back in order.
+     * Model values that are {@link java.util.concurrent.Future}s are waited for when a template first reads them, so slow values only hold up the
+     * fragments that use them. The factory does not shut the executor down.
+     *
+     * @param executor  a bounded executor (eg: {@link #newFragmentExecutor(int)}), or null to render fragments inline (the default)
+     */
+    public void setFragmentExecutor(ExecutorService executor) {
+       this.fragmentExecutor = executor;
+    }
+
+    /**
+     * @param threads  the maximum number of fragments rendered at once
+     * @return a fixed size executor for {@link #setFragmentExecutor(ExecutorService)} that runs on virtual threads when the JVM supports them,
+     *         and on daemon threads otherwise
+     */
+    public static ExecutorService newFragmentExecutor(int threads) {
+       return Executors.newFixedThreadPool(threads, createFragmentThreadFactory());
+    }
+
+    private static ThreadFactory createFragmentThreadFactory() {
+       try {
+          final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+          return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+       } catch (ReflectiveOperationException e) {
+          LOGGER.debug("Virtual threads are not available, rendering fragments on platform threads");
+       }
+       final AtomicInteger count = new AtomicInteger();
+       return new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+             final Thread thread = new Thread(runnable, "freemarker-fragment-" + count.incrementAndGet());
+             thread.setDaemon(true);
+             return thread;
+          }
+       };
+    }
+
+    /**
+     * Remove insignificant whitespace and comments from rendered output as it is written. Only enable it for factories that render HTML,
+     * the size saved by each template is reported in {@link #getMetrics()}.
+     *
+     * @param minifyHtml  true to minify every subsequent render, false (the default) to write the output as rendered
+     */
+    public void setMinifyHtml(boolean minifyHtml) {
+       this.minifyHtml = minifyHtml;
+    }
+
+    /**
+     * @return true if rendered output is minified
+     */
+    public boolean isMinifyHtml() {
+       return minifyHtml;
+    }
+
+    /**
+     * @return the counters of the renders performed by this factory
+     */
+    public TemplateMetrics getMetrics() {
+       return metrics;
     }
 
     /**
      * @param templatePath  the template to render (view)
      * @param model         the model
      * @param writer        the writer
-     * @throws TemplateException  on template error
+     * @throws TemplateException  on template error, {@link RenderLimitExceededException} when the render exceeds the {@link RenderLimits}
      * @throws IOException        on any other write error
      */
     public void render(String templatePath, Object model, Writer writer) throws TemplateException, IOException {
-       final Template template;
+       final Template template = getTemplate(templatePath);
+       metrics.rendered();
+       if (!minifyHtml) {
+          renderLimited(templatePath, template, model, writer);
+          return;
+       }
+       final HtmlMinifyingWriter minifier = new HtmlMinifyingWriter(writer);
+       renderLimited(templatePath, template, model, minifier);
+       minifier.finish();
+       metrics.minified(templatePath, minifier.getCharsIn(), minifier.getCharsOut());
+    }
+
+    private void renderLimited(String templatePath, Template template, Object model, Writer writer) throws TemplateException, IOException {
+       final RenderLimits limits = renderLimits;
+       if (limits.isUnlimited()) {
+          process(template, model, writer, null);
+          return;
+       }
+       final RenderBudget budget = new RenderBudget(limits);
+       final RenderBudget previous = budget.enter();
+       try {
+          process(template, model, writer, budget);
+       } catch (TemplateException|IOException e) {
+          if (budget.getExceeded() == null) {
+             throw e;
+          }
+          metrics.limitExceeded(budget.getExceeded());
+          throw new RenderLimitExceededException(format("Render limit %s exceeded rendering template '%s'", budget.getExceeded(), templatePath), budget.getExceeded(), e);
+       } finally {
+          RenderBudget.restore(previous);
+       }
+    }
+
+    private Template getTemplate(String templatePath) throws TemplateException {
        try {
-          template = config.getTemplate(templatePath, CharEncoding.UTF_8);
+          return config.getTemplate(templatePath, CharEncoding.UTF_8);
        } catch (IOException e) {
           throw new TemplateException(format("Failed to render template '%s'", templatePath), e, null);
        }
-       template.process(model, writer);
+    }
+
+    private void process(Template template, Object model, Writer writer, RenderBudget budget) throws TemplateException, IOException {
+       final ExecutorService executor = fragmentExecutor;
+       if (executor == null) {
+          template.process(model, bounded(writer, budget));
+          return;
+       }
+       final FragmentWriter fragments = new FragmentWriter(writer, executor, this, model, budget);
+       try {
+          template.process(model, bounded(fragments, budget));
+       } catch (TemplateException|IOException|RuntimeException e) {
+          fragments.cancel();
+          throw e;
+       }
+       fragments.join();
+    }
+
+    private static Writer bounded(Writer writer, RenderBudget budget) {
+       return budget == null ? writer : new BoundedWriter(writer, budget);
+    }
+
+    /**
+     * Render a fragment forked by {@link FragmentWriter}, charging its output to the <tt>budget</tt> of the render it belongs to (if it has limits).
+     * Fragments nested within it are included inline.
+     */
+    String renderFragment(String templatePath, Object model, RenderBudget budget) throws TemplateException, IOException {
+       final StringWriter writer = new StringWriter();
+       if (budget == null) {
+          getTemplate(templatePath).process(model, writer);
+          return writer.toString();
+       }
+       final RenderBudget previous = budget.enter();
+       try {
+          getTemplate(templatePath).process(model, new BoundedWriter(writer, budget));
+       } finally {
+          RenderBudget.restore(previous);
+       }
+       return writer.toString();
+    }
+
+    /**
+     * Same as {@link #render(String, Object, Writer)} but renders the most specific variant of the template available for <tt>locale</tt>.
+     * For a <tt>fr_CA</tt> locale <tt>/templates/mail.ftl</tt> resolves to the first existing template of <tt>/templates/mail_fr_CA.ftl</tt>,
+     * <tt>/templates/mail_fr.ftl</tt> and <tt>/templates/mail.ftl</tt>. The resolved template (or the lack of one) is remembered until {@link #clear()}.
+     *
+     * @param templatePath  the template to render (view)
+     * @param locale        the locale to render the template for, or null to render <tt>templatePath</tt> as is
+     * @param model         the model
+     * @param writer        the writer
+     * @throws TemplateException  on template error
+     * @throws IOException        on any other write error
+     */
+    public void render(String templatePath, Locale locale, Object model, Writer writer) throws TemplateException, IOException {
+       render(locale == null ? templatePath : resolveLocalized(templatePath, locale), model, writer);
+    }
+
+    /**
+     * Same as {@link #render(String, Locale, Object, Writer)} but instead returns a StringBuffer of the rendered result instead of writing it to a writer.
+     *
+     * @param templatePath  the template to render (view)
+     * @param locale        the locale to render the template for, or null to render <tt>templatePath</tt> as is
+     * @param model         the model
+     * @return a StringBuffer that contains the rendered template.
+     *
+     * @throws TemplateException  on template error
+     * @throws IOException        on any other write error
+     */
+    public StringBuffer renderToStringBuffer(String templatePath, Locale locale, Object model) throws TemplateException, IOException {
+        final StringWriter writer = new StringWriter();
+        render(templatePath, locale, model, writer);
+        return writer.getBuffer();
+    }
+
+    /**
+     * Same as {@link #render(String, Locale, Object, Writer)} but returns the rendered result as gzip compressed UTF-8, ready to be cached
+     * and served with <tt>Content-Encoding: gzip</tt>. The output is compressed as it is rendered.
+     *
+     * @param templatePath  the template to render (view)
+     * @param locale        the locale to render the template for, or null to render <tt>templatePath</tt> as is
+     * @param model         the model
+     * @return the gzip compressed rendered template
+     *
+     * @throws TemplateException  on template error
+     * @throws IOException        on any other write error
+     */
+    public byte[] renderGzipped(String templatePath, Locale locale, Object model) throws TemplateException, IOException {
+       final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+       try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+          render(templatePath, locale, model, writer);
+       }
+       return bytes.toByteArray();
+    }
+
+    private String resolveLocalized(String templatePath, Locale locale) throws TemplateException {
+       final LocalizedKey key = new LocalizedKey(templatePath, locale);
+       String resolved = localizedPaths.get(key);
+       if (resolved == null) {
+          final String found = findLocalized(templatePath, locale);
+          resolved = found == null ? NOT_FOUND : found;
+          if (localizedPaths.size() >= LOCALIZED_CACHE_SIZE) {
+             evictLocalized();
+          }
+          localizedPaths.put(key, resolved);
+       }
+       if (NOT_FOUND.equals(resolved)) {
+          throw new TemplateException(format("Failed to render template '%s' for locale '%s'", templatePath, locale), null);
+       }
+       return resolved;
+    }
+
+    /**
+     * Make room in the resolved template cache by dropping an arbitrary entry, cheap enough to keep reads lock free.
+     */
+    private void evictLocalized() {
+       final Iterator<LocalizedKey> keys = localizedPaths.keySet().iterator();
+       if (keys.hasNext()) {
+          keys.next();
+          keys.remove();
+       }
+    }
+
+    private String findLocalized(String templatePath, Locale locale) throws TemplateException {
+       final int dot = templatePath.lastIndexOf('.');
+       final String base = dot > templatePath.lastIndexOf('/') ? templatePath.substring(0, dot) : templatePath;
+       final String extension = templatePath.substring(base.length());
+       String suffix = locale.toString();
+       while (!suffix.isEmpty()) {
+          final String candidate = base + "_" + suffix + extension;
+          if (exists(candidate)) {
+             return candidate;
+          }
+          final int separator = suffix.lastIndexOf('_');
+          suffix = separator < 0 ? "" : suffix.substring(0, separator);
+       }
+       return exists(templatePath) ? templatePath : null;
+    }
+
+    private boolean exists(String templatePath) throws TemplateException {
+       final TemplateLoader loader = config.getTemplateLoader();
+       try {
+          final Object source = loader.findTemplateSource(templatePath);
+          if (source == null) {
+             return false;
+          }
+          loader.closeTemplateSource(source);
+          return true;
+       } catch (IOException e) {
+          throw new TemplateException(format("Failed to look up template '%s'", templatePath), e, null);
+       }
     }
 
     /**
@@ -102,4 +511,32 @@ public class FreemarkerTemplateFactory {
         return writer.getBuffer();
     }
 
+    private static final int REPOSITORY_EVENTS = Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+    /** Cached in place of a resolved template path when there is no template for a locale, as the cache can't hold nulls. */
+    private static final String NOT_FOUND = "";
+    private static final Logger LOGGER = LoggerFactory.getLogger(FreemarkerTemplateFactory.class);
+
+    private static final class LocalizedKey {
+        private final String templatePath;
+        private final Locale locale;
+
+        LocalizedKey(String templatePath, Locale locale) {
+            this.templatePath = templatePath;
+            this.locale = locale;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * templatePath.hashCode() + locale.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof LocalizedKey)) {
+                return false;
+            }
+            final LocalizedKey other = (LocalizedKey) obj;
+            return templatePath.equals(other.templatePath) && locale.equals(other.locale);
+        }
+    }
 }
@@ -0,0 +1,64 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+/**
+ * An object wrapper that waits for {@link Future} values when a template first reads them. Slow model values can be computed concurrently and only the
+ * fragments that use them wait for them. As every model access goes through it, it also stops renders that are past their {@link RenderLimits} timeout
+ * even when they don't write anything.
+ */
+class FutureAwareObjectWrapper extends DefaultObjectWrapper {
+
+    @Override
+    public TemplateModel wrap(Object obj) throws TemplateModelException {
+        final RenderBudget budget = RenderBudget.current();
+        if (budget != null) {
+            budget.checkDeadline();
+        }
+        if (obj instanceof Future) {
+            try {
+                return super.wrap(get((Future<?>) obj, budget));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TemplateModelException("Interrupted while waiting for a model value", e);
+            } catch (ExecutionException e) {
+                throw new TemplateModelException("Failed to compute a model value", e);
+            } catch (TimeoutException e) {
+                throw new TemplateModelException("Timed out waiting for a model value", budget.timedOut());
+            }
+        }
+        return super.wrap(obj);
+    }
+
+    private static Object get(Future<?> value, RenderBudget budget) throws InterruptedException, ExecutionException, TimeoutException {
+        if (budget == null || !budget.hasDeadline()) {
+            return value.get();
+        }
+        return value.get(budget.getRemainingNanos(), TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,317 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A writer that removes insignificant whitespace and comments from the HTML written to it as it streams through, holding back at most
+ * one pending whitespace character and the start of a tag. Runs of whitespace collapse to a single space (or newline if the run contained one)
+ * and comments are dropped, except for conditional comments (<tt>&lt;!--[if mso]&gt;</tt>, and the <tt>&lt;!--&lt;![endif]--&gt;</tt> that closes
+ * a downlevel-revealed <tt>&lt;!--[if !mso]&gt;&lt;!--&gt;</tt>) which mail clients rely on. The content of
+ * <tt>pre</tt>, <tt>textarea</tt>, <tt>script</tt> and <tt>style</tt> elements, and the inside of tags, is passed through untouched.
+ */
+class HtmlMinifyingWriter extends Writer {
+
+    private enum State { TEXT, MARKUP_START, TAG, RAW, COMMENT_START, COMMENT, CONDITIONAL_COMMENT }
+
+    private static final String COMMENT_START = "<!--";
+    private static final String REVEALED_END = "<![";
+    private static final String[] RAW_ELEMENTS = { "pre", "textarea", "script", "style" };
+
+    private final Writer delegate;
+    private final char[] buffer = new char[1024];
+    private int buffered;
+    private State state = State.TEXT;
+    private char pendingSpace;
+    private boolean started;
+    private int matched;
+    private char quote;
+    private boolean closingTag;
+    private boolean inTagName;
+    private final StringBuilder tagName = new StringBuilder();
+    private String rawEnd;
+    private final char[] held = new char["</textarea".length()];
+    private long charsIn;
+    private long charsOut;
+
+    HtmlMinifyingWriter(Writer delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the number of characters written to this writer
+     */
+    long getCharsIn() {
+        return charsIn;
+    }
+
+    /**
+     * @return the number of characters passed on after minification
+     */
+    long getCharsOut() {
+        return charsOut;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            accept(cbuf[i]);
+        }
+        charsIn += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            accept(str.charAt(i));
+        }
+        charsIn += len;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        accept((char) c);
+        charsIn++;
+    }
+
+    /**
+     * Pass on everything written so far, trailing whitespace is dropped. The delegate is neither flushed nor closed.
+     */
+    void finish() throws IOException {
+        if (state == State.MARKUP_START) {
+            emitText('<');
+            emit(COMMENT_START.substring(1), matched - 1);
+            state = State.TEXT;
+        } else if (state == State.RAW) {
+            emitHeld();
+        }
+        drain();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        delegate.close();
+    }
+
+    private void accept(char c) throws IOException {
+        switch (state) {
+            case TEXT:
+                text(c);
+                break;
+            case MARKUP_START:
+                markupStart(c);
+                break;
+            case TAG:
+                tag(c);
+                break;
+            case RAW:
+                raw(c);
+                break;
+            case COMMENT_START:
+                commentStart(c);
+                break;
+            case COMMENT:
+                comment(c, false);
+                break;
+            case CONDITIONAL_COMMENT:
+                comment(c, true);
+                break;
+        }
+    }
+
+    private void text(char c) throws IOException {
+        if (Character.isWhitespace(c)) {
+            if (started && pendingSpace != '\n') {
+                pendingSpace = c == '\n' || c == '\r' ? '\n' : ' ';
+            }
+            return;
+        }
+        if (c == '<') {
+            state = State.MARKUP_START;
+            matched = 1;
+            return;
+        }
+        emitText(c);
+    }
+
+    private void markupStart(char c) throws IOException {
+        if (c == COMMENT_START.charAt(matched)) {
+            if (++matched == COMMENT_START.length()) {
+                matched = 0;
+                state = State.COMMENT_START;
+            }
+            return;
+        }
+        emitText('<');
+        emit(COMMENT_START.substring(1), matched - 1);
+        startTag();
+        tag(c);
+    }
+
+    /**
+     * Decide whether the comment is conditional from its first characters, <tt>matched</tt> counts the characters of <tt>&lt;![</tt> seen so far.
+     */
+    private void commentStart(char c) throws IOException {
+        if (c == REVEALED_END.charAt(matched)) {
+            if (++matched == REVEALED_END.length()) {
+                keepComment(REVEALED_END);
+            }
+        } else if (c == '[' && matched == 0) {
+            keepComment("[");
+        } else {
+            // the characters of <![ held back so far contain no '-' that could end the comment
+            matched = 0;
+            state = State.COMMENT;
+            comment(c, false);
+        }
+    }
+
+    private void keepComment(String start) throws IOException {
+        emitText('<');
+        emit(COMMENT_START.substring(1), COMMENT_START.length() - 1);
+        emit(start, start.length());
+        matched = 0;
+        state = State.CONDITIONAL_COMMENT;
+    }
+
+    /**
+     * Look for the end of a comment, passing it on if <tt>keep</tt>.
+     */
+    private void comment(char c, boolean keep) throws IOException {
+        if (keep) {
+            emit(c);
+        }
+        if (c == '-') {
+            matched++;
+        } else if (c == '>' && matched >= 2) {
+            state = State.TEXT;
+            matched = 0;
+        } else {
+            matched = 0;
+        }
+    }
+
+    private void startTag() {
+        state = State.TAG;
+        quote = 0;
+        closingTag = false;
+        inTagName = true;
+        tagName.setLength(0);
+    }
+
+    private void tag(char c) throws IOException {
+        emit(c);
+        if (quote != 0) {
+            if (c == quote) {
+                quote = 0;
+            }
+        } else if (c == '"' || c == '\'') {
+            quote = c;
+            inTagName = false;
+        } else if (c == '>') {
+            endTag();
+        } else if (inTagName) {
+            if (c == '/' && tagName.length() == 0 && !closingTag) {
+                closingTag = true;
+            } else if (Character.isLetterOrDigit(c) || c == '!') {
+                tagName.append(Character.toLowerCase(c));
+            } else {
+                inTagName = false;
+            }
+        }
+    }
+
+    private void endTag() {
+        state = State.TEXT;
+        if (closingTag) {
+            return;
+        }
+        for (String element : RAW_ELEMENTS) {
+            if (element.contentEquals(tagName)) {
+                state = State.RAW;
+                rawEnd = "</" + element;
+                matched = 0;
+                return;
+            }
+        }
+    }
+
+    private void raw(char c) throws IOException {
+        if (Character.toLowerCase(c) == rawEnd.charAt(matched)) {
+            held[matched++] = c;
+            if (matched == rawEnd.length()) {
+                emitHeld();
+                startTag();
+                closingTag = true;
+                inTagName = false;
+            }
+            return;
+        }
+        if (matched > 0) {
+            emitHeld();
+            raw(c);
+            return;
+        }
+        emit(c);
+    }
+
+    private void emitHeld() throws IOException {
+        for (int i = 0; i < matched; i++) {
+            emit(held[i]);
+        }
+        matched = 0;
+    }
+
+    private void emitText(char c) throws IOException {
+        if (pendingSpace != 0) {
+            emit(pendingSpace);
+            pendingSpace = 0;
+        }
+        started = true;
+        emit(c);
+    }
+
+    private void emit(String str, int len) throws IOException {
+        for (int i = 0; i < len; i++) {
+            emit(str.charAt(i));
+        }
+    }
+
+    private void emit(char c) throws IOException {
+        if (buffered == buffer.length) {
+            drain();
+        }
+        buffer[buffered++] = c;
+        charsOut++;
+    }
+
+    private void drain() throws IOException {
+        delegate.write(buffer, 0, buffered);
+        buffered = 0;
+    }
+}
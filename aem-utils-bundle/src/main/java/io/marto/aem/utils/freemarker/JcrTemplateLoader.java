@@ -0,0 +1,171 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import static java.lang.String.format;
+import static org.apache.commons.lang3.StringUtils.removeEnd;
+import static org.apache.commons.lang3.StringUtils.removeStart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import freemarker.cache.TemplateLoader;
+
+/**
+ * A freemarker template loader that reads templates stored as <tt>nt:file</tt> nodes under a root path in the repository (eg: <tt>/apps/myapp/templates</tt>).
+ * <p>
+ * The loader is only consulted by freemarker when a template is not cached, so {@link FreemarkerTemplateFactory} evicts templates as they change in the
+ * repository rather than polling it.
+ */
+public class JcrTemplateLoader implements TemplateLoader {
+
+    private final Session session;
+    private final String rootPath;
+
+    /**
+     * @param session   the session used to read templates, it must stay open for as long as the loader is in use
+     * @param rootPath  the repository path templates are resolved against
+     */
+    public JcrTemplateLoader(Session session, String rootPath) {
+        this.session = session;
+        this.rootPath = removeEnd(rootPath, "/");
+    }
+
+    /**
+     * @return the session templates are read with
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return the repository path templates are resolved against
+     */
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    /**
+     * @param path  an absolute repository path (eg: the path of an observation event)
+     * @return the name of the template <tt>path</tt> belongs to, or null if <tt>path</tt> is not under the root path
+     */
+    public String toTemplateName(String path) {
+        if (path == null || !path.startsWith(rootPath + "/")) {
+            return null;
+        }
+        final String name = path.substring(rootPath.length());
+        final int content = name.indexOf("/" + Node.JCR_CONTENT);
+        return content < 0 ? name : name.substring(0, content);
+    }
+
+    /**
+     * Refresh the session so that it sees the latest changes, which a long lived session (eg: on Oak) may not until it is refreshed.
+     * Call it before evicting changed templates, or they may be reloaded from the stale session.
+     *
+     * @throws RepositoryException  if the session can't be refreshed
+     */
+    public void refresh() throws RepositoryException {
+        synchronized (session) {
+            session.refresh(true);
+        }
+    }
+
+    @Override
+    public Object findTemplateSource(String name) throws IOException {
+        final String path = rootPath + "/" + removeStart(name, "/");
+        try {
+            synchronized (session) {
+                if (!session.nodeExists(path) || !session.getNode(path).hasNode(Node.JCR_CONTENT)) {
+                    return null;
+                }
+                final Node content = session.getNode(path).getNode(Node.JCR_CONTENT);
+                if (!content.hasProperty(Property.JCR_DATA)) {
+                    return null;
+                }
+                final long lastModified = content.hasProperty(Property.JCR_LAST_MODIFIED)
+                        ? content.getProperty(Property.JCR_LAST_MODIFIED).getDate().getTimeInMillis() : -1;
+                return new JcrTemplateSource(path, lastModified);
+            }
+        } catch (RepositoryException e) {
+            throw new IOException(format("Failed to look up template '%s'", path), e);
+        }
+    }
+
+    @Override
+    public long getLastModified(Object templateSource) {
+        return ((JcrTemplateSource) templateSource).lastModified;
+    }
+
+    @Override
+    public Reader getReader(Object templateSource, String encoding) throws IOException {
+        final String path = ((JcrTemplateSource) templateSource).path;
+        try {
+            synchronized (session) {
+                final Binary binary = session.getNode(path).getNode(Node.JCR_CONTENT).getProperty(Property.JCR_DATA).getBinary();
+                try (InputStream in = binary.getStream()) {
+                    final Reader reader = new InputStreamReader(in, encoding);
+                    final StringWriter content = new StringWriter();
+                    final char[] buffer = new char[4096];
+                    for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+                        content.write(buffer, 0, read);
+                    }
+                    return new StringReader(content.toString());
+                } finally {
+                    binary.dispose();
+                }
+            }
+        } catch (RepositoryException e) {
+            throw new IOException(format("Failed to read template '%s'", path), e);
+        }
+    }
+
+    @Override
+    public void closeTemplateSource(Object templateSource) {
+    }
+
+    private static final class JcrTemplateSource {
+        private final String path;
+        private final long lastModified;
+
+        JcrTemplateSource(String path, long lastModified) {
+            this.path = path;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof JcrTemplateSource && path.equals(((JcrTemplateSource) obj).path);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import java.io.IOException;
+import java.util.Map;
+
+import freemarker.core.Environment;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateDirectiveModel;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateModel;
+
+/**
+ * Checks the deadline of the render in progress (see {@link RenderBudget}). {@link LoopGuardTemplateLoader} calls it at the start of every loop
+ * iteration, macro and function body, so that a template that neither writes nor reads the model (eg: <tt>&lt;#list 1..n as i&gt;&lt;#assign
+ * x = i * 2&gt;&lt;/#list&gt;</tt>) is stopped by the render timeout too. Renders without limits only pay for a thread local lookup.
+ */
+class LoopGuardDirective implements TemplateDirectiveModel {
+
+    static final String NAME = "_loopGuard";
+    static final LoopGuardDirective INSTANCE = new LoopGuardDirective();
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void execute(Environment env, Map params, TemplateModel[] loopVars, TemplateDirectiveBody body) throws TemplateException, IOException {
+        final RenderBudget budget = RenderBudget.current();
+        if (budget != null) {
+            budget.checkDeadline();
+        }
+    }
+}
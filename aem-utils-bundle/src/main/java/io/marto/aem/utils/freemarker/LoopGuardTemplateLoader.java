@@ -0,0 +1,151 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import freemarker.cache.TemplateLoader;
+
+/**
+ * A template loader that inserts a call to {@link LoopGuardDirective} right after the start tag of every <tt>#list</tt>, <tt>#items</tt>,
+ * <tt>#foreach</tt>, <tt>#macro</tt> and <tt>#function</tt>, which are the only ways a template can repeat itself. The call writes nothing and is placed
+ * on the same line as the start tag, so neither the output nor the line numbers of errors change. Comments and <tt>#noparse</tt> sections are left
+ * untouched. Only the default angle bracket tag syntax is instrumented.
+ */
+class LoopGuardTemplateLoader implements TemplateLoader {
+
+    private static final String[] LOOP_DIRECTIVES = { "list", "items", "foreach", "macro", "function" };
+    private static final String GUARD = "<@" + LoopGuardDirective.NAME + "/>";
+    private static final String COMMENT_START = "<#--";
+    private static final String COMMENT_END = "-->";
+    private static final String NOPARSE_START = "<#noparse>";
+    private static final String NOPARSE_END = "</#noparse>";
+
+    private final TemplateLoader delegate;
+
+    LoopGuardTemplateLoader(TemplateLoader delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Object findTemplateSource(String name) throws IOException {
+        return delegate.findTemplateSource(name);
+    }
+
+    @Override
+    public long getLastModified(Object templateSource) {
+        return delegate.getLastModified(templateSource);
+    }
+
+    @Override
+    public Reader getReader(Object templateSource, String encoding) throws IOException {
+        final StringBuilder source = new StringBuilder();
+        try (Reader reader = delegate.getReader(templateSource, encoding)) {
+            final char[] buffer = new char[4096];
+            for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+                source.append(buffer, 0, read);
+            }
+        }
+        return new StringReader(guard(source.toString()));
+    }
+
+    @Override
+    public void closeTemplateSource(Object templateSource) throws IOException {
+        delegate.closeTemplateSource(templateSource);
+    }
+
+    /**
+     * @return <tt>source</tt> with a loop guard at the start of every loop, macro and function body
+     */
+    static String guard(String source) {
+        final StringBuilder guarded = new StringBuilder(source.length() + 64);
+        int copied = 0;
+        for (int i = 0; i >= 0 && i < source.length(); i++) {
+            if (source.startsWith(COMMENT_START, i)) {
+                i = skipPast(source, COMMENT_END, i);
+            } else if (source.startsWith(NOPARSE_START, i)) {
+                i = skipPast(source, NOPARSE_END, i);
+            } else if (source.startsWith("<#", i) || source.startsWith("</#", i) || source.startsWith("<@", i) || source.startsWith("</@", i)) {
+                final int end = findEnd(source, i + 2, '>');
+                if (end >= 0 && isLoopStart(source, i)) {
+                    guarded.append(source, copied, end + 1).append(GUARD);
+                    copied = end + 1;
+                }
+                i = end;
+            } else if (source.startsWith("${", i) || source.startsWith("#{", i)) {
+                i = findEnd(source, i + 2, '}');
+            }
+        }
+        return guarded.append(source, copied, source.length()).toString();
+    }
+
+    /**
+     * @return the index of the last character of the first <tt>end</tt> after <tt>from</tt>, or -1 if there is none
+     */
+    private static int skipPast(String source, String end, int from) {
+        final int found = source.indexOf(end, from);
+        return found < 0 ? -1 : found + end.length() - 1;
+    }
+
+    private static boolean isLoopStart(String source, int i) {
+        if (!source.startsWith("<#", i)) {
+            return false;
+        }
+        for (String directive : LOOP_DIRECTIVES) {
+            final int after = i + 2 + directive.length();
+            if (source.startsWith(directive, i + 2) && after < source.length()
+                    && (Character.isWhitespace(source.charAt(after)) || source.charAt(after) == '>')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the index of the <tt>close</tt> character that ends the tag or interpolation whose content starts at <tt>from</tt>, skipping string
+     *         literals and bracketed expressions, or -1 if it is not closed
+     */
+    private static int findEnd(String source, int from, char close) {
+        int depth = 0;
+        char quote = 0;
+        boolean raw = false;
+        for (int i = from; i < source.length(); i++) {
+            final char c = source.charAt(i);
+            if (quote != 0) {
+                if (c == '\\' && !raw) {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                raw = i > 0 && source.charAt(i - 1) == 'r';
+            } else if (c == '(' || c == '[' || c == '{') {
+                depth++;
+            } else if (c == close && depth == 0) {
+                return i;
+            } else if ((c == ')' || c == ']' || c == '}') && depth > 0) {
+                depth--;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import static java.lang.String.format;
+import io.marto.aem.utils.freemarker.RenderLimitExceededException.Limit;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freemarker.template.TemplateModelException;
+
+/**
+ * What is left of the {@link RenderLimits} of a single render. Output is charged to it by {@link BoundedWriter}s, and model access and loop iterations
+ * check its deadline (see {@link FutureAwareObjectWrapper} and {@link LoopGuardDirective}), so renders that compute without writing are stopped too. The exceeded limit is remembered so it can be
+ * reported even if the template engine wraps or swallows the resulting exception.
+ */
+class RenderBudget {
+
+    private static final ThreadLocal<RenderBudget> CURRENT = new ThreadLocal<>();
+
+    private final RenderLimits limits;
+    private final long deadline;
+    private final AtomicLong chars = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private volatile Limit exceeded;
+
+    RenderBudget(RenderLimits limits) {
+        this.limits = limits;
+        this.deadline = limits.getTimeoutMillis() > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(limits.getTimeoutMillis()) : 0;
+    }
+
+    /**
+     * @return the budget of the render in progress on the current thread, or null if it has no limits
+     */
+    static RenderBudget current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Make this the budget of the render in progress on the current thread.
+     *
+     * @return the budget it replaces, to be passed to {@link #restore(RenderBudget)} once the render is done
+     */
+    RenderBudget enter() {
+        final RenderBudget previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    static void restore(RenderBudget previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * @return the limit that was exceeded, or null if the render stayed within its limits
+     */
+    Limit getExceeded() {
+        return exceeded;
+    }
+
+    /**
+     * @return true if the render has a timeout
+     */
+    boolean hasDeadline() {
+        return deadline != 0;
+    }
+
+    /**
+     * @return the time left until the render times out, only meaningful if it {@link #hasDeadline()}
+     */
+    long getRemainingNanos() {
+        return deadline - System.nanoTime();
+    }
+
+    /**
+     * Charge a write of <tt>len</tt> characters.
+     *
+     * @throws IOException  if the write exceeds a limit
+     */
+    void charge(int len) throws IOException {
+        if (exceeded != null) {
+            throw new IOException(format("Render limit %s already exceeded", exceeded));
+        }
+        final long total = chars.addAndGet(len);
+        if (limits.getMaxOutputChars() > 0 && total > limits.getMaxOutputChars()) {
+            exceed(Limit.OUTPUT_SIZE, limits.getMaxOutputChars());
+        }
+        if (limits.getMaxWrites() > 0 && writes.incrementAndGet() > limits.getMaxWrites()) {
+            exceed(Limit.WRITES, limits.getMaxWrites());
+        }
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            exceed(Limit.TIMEOUT, limits.getTimeoutMillis());
+        }
+    }
+
+    /**
+     * @throws TemplateModelException  if the render is past its deadline
+     */
+    void checkDeadline() throws TemplateModelException {
+        if (exceeded == Limit.TIMEOUT || (deadline != 0 && System.nanoTime() - deadline > 0)) {
+            exceeded = Limit.TIMEOUT;
+            throw new TemplateModelException(format("Render limit %s of %d exceeded", Limit.TIMEOUT, limits.getTimeoutMillis()));
+        }
+    }
+
+    /**
+     * Record that the render timed out while waiting.
+     *
+     * @return the exception to throw
+     */
+    IOException timedOut() {
+        exceeded = Limit.TIMEOUT;
+        return new IOException(format("Render limit %s of %d exceeded", Limit.TIMEOUT, limits.getTimeoutMillis()));
+    }
+
+    private void exceed(Limit limit, long value) throws IOException {
+        exceeded = limit;
+        throw new IOException(format("Render limit %s of %d exceeded", limit, value));
+    }
+}
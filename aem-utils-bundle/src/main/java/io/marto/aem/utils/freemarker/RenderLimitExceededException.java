@@ -0,0 +1,49 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import freemarker.template.TemplateException;
+
+/**
+ * Thrown when rendering a template exceeds one of the configured {@link RenderLimits}.
+ */
+public class RenderLimitExceededException extends TemplateException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The limit that was exceeded.
+     */
+    public enum Limit {
+        TIMEOUT, OUTPUT_SIZE, WRITES
+    }
+
+    private final Limit limit;
+
+    public RenderLimitExceededException(String description, Limit limit, Exception cause) {
+        super(description, cause, null);
+        this.limit = limit;
+    }
+
+    /**
+     * @return the limit that was exceeded
+     */
+    public Limit getLimit() {
+        return limit;
+    }
+}
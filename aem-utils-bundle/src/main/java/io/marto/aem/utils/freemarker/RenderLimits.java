@@ -0,0 +1,70 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+/**
+ * Per-render limits enforced by {@link FreemarkerTemplateFactory}. A limit of zero (or less) means unlimited.
+ * <p>
+ * Limits are checked as output is written. The timeout is also checked whenever the template reads the model and at the start of every
+ * <tt>#list</tt>/<tt>#items</tt> iteration and macro or function call (see {@link LoopGuardDirective}), so a template that loops or recurses without
+ * writing anything is stopped too. Templates using the square bracket tag syntax are not instrumented, their loops are only checked on writes and model
+ * reads. A single slow call into the model (eg: a getter) is only stopped once it returns.
+ */
+public final class RenderLimits {
+
+    /**
+     * No limits, templates are rendered as is.
+     */
+    public static final RenderLimits UNLIMITED = new RenderLimits(0, 0, 0);
+
+    private final long timeoutMillis;
+    private final long maxOutputChars;
+    private final long maxWrites;
+
+    /**
+     * @param timeoutMillis   the wall-clock time a single render may take
+     * @param maxOutputChars  the number of characters a single render may output
+     * @param maxWrites       the number of writes (static text blocks and interpolations) a single render may perform,
+     *                        which bounds loops that keep producing output
+     */
+    public RenderLimits(long timeoutMillis, long maxOutputChars, long maxWrites) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxOutputChars = maxOutputChars;
+        this.maxWrites = maxWrites;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public long getMaxOutputChars() {
+        return maxOutputChars;
+    }
+
+    public long getMaxWrites() {
+        return maxWrites;
+    }
+
+    /**
+     * @return true if none of the limits are set
+     */
+    public boolean isUnlimited() {
+        return timeoutMillis <= 0 && maxOutputChars <= 0 && maxWrites <= 0;
+    }
+}
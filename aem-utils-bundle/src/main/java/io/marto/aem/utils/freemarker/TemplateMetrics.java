@@ -0,0 +1,122 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import io.marto.aem.utils.freemarker.RenderLimitExceededException.Limit;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters describing the renders performed by a {@link FreemarkerTemplateFactory}.
+ */
+public class TemplateMetrics {
+
+    private final AtomicLong renders = new AtomicLong();
+    private final AtomicLongArray limitsExceeded = new AtomicLongArray(Limit.values().length);
+    private final ConcurrentMap<String, SizeSavings> sizeSavings = new ConcurrentHashMap<>();
+
+    void rendered() {
+        renders.incrementAndGet();
+    }
+
+    void limitExceeded(Limit limit) {
+        limitsExceeded.incrementAndGet(limit.ordinal());
+    }
+
+    void minified(String templatePath, long rendered, long written) {
+        SizeSavings savings = sizeSavings.get(templatePath);
+        if (savings == null) {
+            final SizeSavings created = new SizeSavings();
+            savings = sizeSavings.putIfAbsent(templatePath, created);
+            savings = savings == null ? created : savings;
+        }
+        savings.add(rendered, written);
+    }
+
+    /**
+     * @return the number of renders started
+     */
+    public long getRenderCount() {
+        return renders.get();
+    }
+
+    /**
+     * @param limit  the limit
+     * @return the number of renders that were aborted because they exceeded <tt>limit</tt>
+     */
+    public long getLimitExceededCount(Limit limit) {
+        return limitsExceeded.get(limit.ordinal());
+    }
+
+    /**
+     * @return the size savings of minified renders, by template path
+     */
+    public Map<String, SizeSavings> getSizeSavings() {
+        return Collections.unmodifiableMap(sizeSavings);
+    }
+
+    /**
+     * The characters rendered by a template, before and after minification.
+     */
+    public static final class SizeSavings {
+
+        private final AtomicLong renders = new AtomicLong();
+        private final AtomicLong renderedChars = new AtomicLong();
+        private final AtomicLong writtenChars = new AtomicLong();
+
+        void add(long rendered, long written) {
+            renders.incrementAndGet();
+            renderedChars.addAndGet(rendered);
+            writtenChars.addAndGet(written);
+        }
+
+        /**
+         * @return the number of minified renders
+         */
+        public long getRenderCount() {
+            return renders.get();
+        }
+
+        /**
+         * @return the characters produced by the template, before minification
+         */
+        public long getRenderedChars() {
+            return renderedChars.get();
+        }
+
+        /**
+         * @return the characters written out, after minification
+         */
+        public long getWrittenChars() {
+            return writtenChars.get();
+        }
+
+        /**
+         * @return the characters removed by minification
+         */
+        public long getSavedChars() {
+            return getRenderedChars() - getWrittenChars();
+        }
+    }
+}
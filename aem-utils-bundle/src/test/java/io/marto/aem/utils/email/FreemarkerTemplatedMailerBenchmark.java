@@ -0,0 +1,218 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.email;
+
+import static java.lang.String.format;
+import static org.junit.Assert.assertEquals;
+import io.marto.aem.utils.freemarker.BaseFreemarkerTest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.mail.EmailException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures end to end throughput of {@link FreemarkerTemplatedMailer}: rendering, MIME encoding and SMTP delivery to an in-process {@link SmtpSink}
+ * through a real gateway, for a range of template sizes, recipients per email and concurrent senders. It reports messages/sec, latency percentiles
+ * and the heap allocated per message by the sending thread. Run with <tt>mvn test -Pbenchmark</tt>, tune with <tt>-Dbenchmark.messages=n</tt>.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class FreemarkerTemplatedMailerBenchmark extends BaseFreemarkerTest {
+
+	private static final String TEMPLATE = "/templates/newsletter.ftl";
+	private static final int[] TEMPLATE_ITEMS = { 10, 1000 };
+	private static final int[] RECIPIENTS = { 1, 10, 100 };
+	private static final int[] CONCURRENCY = { 1, 4, 16 };
+	private static final int MESSAGES = Integer.getInteger("benchmark.messages", 200);
+	private static final int WARMUP_MESSAGES = MESSAGES / 4;
+
+	private SmtpSink sink;
+
+	private FreemarkerTemplatedMailer mailer;
+
+	@Before
+	public void setup() {
+		super.setup();
+		try {
+			sink = new SmtpSink();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		mailer = new FreemarkerTemplatedMailer(new SmtpMessageGatewayService("127.0.0.1", sink.getPort()), bundle);
+	}
+
+	@After
+	public void teardown() throws IOException {
+		sink.close();
+	}
+
+	@Test
+	public void benchmark() throws Exception {
+		LOGGER.info(format("%-6s %-10s %-11s %10s %10s %10s %10s %10s %12s", "items", "recipients", "concurrency", "msgs/sec", "p50 ms", "p90 ms",
+				"p99 ms", "max ms", "alloc/msg"));
+		int delivered = 0;
+		for (int items : TEMPLATE_ITEMS) {
+			for (int recipients : RECIPIENTS) {
+				for (int concurrency : CONCURRENCY) {
+					run(items, recipients, concurrency, WARMUP_MESSAGES);
+					final Result result = run(items, recipients, concurrency, MESSAGES);
+					delivered += WARMUP_MESSAGES + MESSAGES;
+					LOGGER.info(format("%-6d %-10d %-11d %10.0f %10.2f %10.2f %10.2f %10.2f %12s", items, recipients, concurrency,
+							result.getMessagesPerSecond(), result.getPercentileMillis(50), result.getPercentileMillis(90),
+							result.getPercentileMillis(99), result.getPercentileMillis(100), result.getAllocatedPerMessage()));
+				}
+			}
+		}
+		assertEquals(delivered, sink.getEnvelopes());
+	}
+
+	@Test
+	public void bulkComparedToOneEmailPerRecipient() throws EmailException {
+		final String[] recipients = recipients(200);
+
+		long start = System.nanoTime();
+		for (String recipient : recipients) {
+			mailer.sendEmail(new String[] { recipient }, "admin@marto.io", "Benchmark Email", TEMPLATE, createModel());
+		}
+		final long individual = System.nanoTime() - start;
+		assertEquals(recipients.length, sink.getRecipients());
+
+		start = System.nanoTime();
+		mailer.sendBulkEmail(recipients, 50, "admin@marto.io", "Benchmark Email", TEMPLATE, null, createModel());
+		final long bulk = System.nanoTime() - start;
+		assertEquals(2 * recipients.length, sink.getRecipients());
+
+		LOGGER.info("Delivered {} recipients: one email each {} recipients/sec, bulk in envelopes of 50 {} recipients/sec",
+				recipients.length, perSecond(recipients.length, individual), perSecond(recipients.length, bulk));
+	}
+
+	private static long perSecond(int count, long nanos) {
+		return count * 1000000000L / Math.max(1, nanos);
+	}
+
+	private Result run(int items, int recipients, int concurrency, int messages) throws InterruptedException, ExecutionException {
+		final Map<String, Object> model = createModel(items);
+		final String[] to = recipients(recipients);
+		final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		try {
+			final List<Future<long[]>> sends = new ArrayList<>(messages);
+			final long start = System.nanoTime();
+			for (int i = 0; i < messages; i++) {
+				sends.add(executor.submit(new Callable<long[]>() {
+					@Override
+					public long[] call() throws EmailException {
+						final long allocated = allocatedBytes();
+						final long sent = System.nanoTime();
+						mailer.sendEmail(to, "admin@marto.io", "Benchmark Email", TEMPLATE, model);
+						return new long[] { System.nanoTime() - sent, allocated < 0 ? -1 : allocatedBytes() - allocated };
+					}
+				}));
+			}
+			final long[] latencies = new long[messages];
+			long allocated = 0;
+			for (int i = 0; i < messages; i++) {
+				final long[] send = sends.get(i).get();
+				latencies[i] = send[0];
+				allocated = allocated < 0 || send[1] < 0 ? -1 : allocated + send[1];
+			}
+			return new Result(messages, System.nanoTime() - start, latencies, allocated);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the bytes allocated so far by the current thread, or -1 if the JVM can't tell
+	 */
+	private static long allocatedBytes() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			final com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+			if (allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+				return allocation.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	private Map<String, Object> createModel(int items) {
+		final Map<String, Object> model = createModel();
+		final List<String> countries = new ArrayList<>(items);
+		for (int i = 0; i < items; i++) {
+			countries.add("Country " + i);
+		}
+		model.put("countries", countries);
+		return model;
+	}
+
+	private static String[] recipients(int count) {
+		final String[] recipients = new String[count];
+		for (int i = 0; i < count; i++) {
+			recipients[i] = "user" + i + "@marto.io";
+		}
+		return recipients;
+	}
+
+	private static final class Result {
+		private final int messages;
+		private final long elapsedNanos;
+		private final long[] latencies;
+		private final long allocated;
+
+		Result(int messages, long elapsedNanos, long[] latencies, long allocated) {
+			this.messages = messages;
+			this.elapsedNanos = elapsedNanos;
+			this.latencies = latencies;
+			this.allocated = allocated;
+			Arrays.sort(latencies);
+		}
+
+		double getMessagesPerSecond() {
+			return messages * 1e9 / elapsedNanos;
+		}
+
+		double getPercentileMillis(int percentile) {
+			final int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+			return latencies[Math.max(0, index)] / 1e6;
+		}
+
+		String getAllocatedPerMessage() {
+			return allocated < 0 ? "n/a" : (allocated / messages / 1024) + " KB";
+		}
+	}
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FreemarkerTemplatedMailerBenchmark.class);
+}
@@ -0,0 +1,111 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.email;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+import io.marto.aem.utils.freemarker.BaseFreemarkerTest;
+
+import java.io.IOException;
+
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.HtmlEmail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.day.cq.mailer.MessageGateway;
+import com.day.cq.mailer.MessageGatewayService;
+
+/**
+ * Sends emails through a gateway that delivers them to an in-process {@link SmtpSink}, the way the AEM mail service does.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class FreemarkerTemplatedMailerBulkTest extends BaseFreemarkerTest {
+
+	private static final String TEMPLATE = "/templates/helloworld.ftl";
+
+	@Mock
+	private MessageGatewayService messageGatewayService;
+
+	@Mock
+	private MessageGateway<HtmlEmail> emailGateway;
+
+	private SmtpSink sink;
+
+	private FreemarkerTemplatedMailer mailer;
+
+	@Before
+	public void setup() {
+		super.setup();
+		try {
+			sink = new SmtpSink();
+			when(messageGatewayService.getGateway(HtmlEmail.class)).thenReturn(emailGateway);
+			doAnswer(new Answer<Void>() {
+				@Override
+				public Void answer(InvocationOnMock invocation) throws Throwable {
+					final HtmlEmail email = invocation.getArgumentAt(0, HtmlEmail.class);
+					email.setHostName("127.0.0.1");
+					email.setSmtpPort(sink.getPort());
+					email.send();
+					return null;
+				}
+			}).when(emailGateway).send(any(HtmlEmail.class));
+		} catch (IOException|EmailException e) {
+			throw new IllegalStateException(e);
+		}
+		mailer = new FreemarkerTemplatedMailer(messageGatewayService, bundle);
+	}
+
+	@After
+	public void teardown() throws IOException {
+		sink.close();
+	}
+
+	@Test
+	public void testBulkEmailIsDeliveredInEnvelopeChunks() throws EmailException {
+		mailer.sendBulkEmail(recipients(25), 10, "admin@marto.io", "Test Email", TEMPLATE, null, createModel());
+
+		assertEquals(1, sink.getConnections());
+		assertEquals(3, sink.getEnvelopes());
+		assertEquals(25, sink.getRecipients());
+		assertThat(sink.getLastMessage(), containsString("FreeMarker Template example: Hello World!"));
+		assertThat(sink.getLastMessage(), not(containsString("user0@marto.io")));
+		assertThat(sink.getLastMessage(), not(containsString("Bcc:")));
+		assertThat(sink.getLastMessage(), containsString("To: " + BatchedHtmlEmail.UNDISCLOSED_RECIPIENTS));
+	}
+
+	private static String[] recipients(int count) {
+		final String[] recipients = new String[count];
+		for (int i = 0; i < count; i++) {
+			recipients[i] = "user" + i + "@marto.io";
+		}
+		return recipients;
+	}
+}
@@ -21,21 +21,28 @@ package io.marto.aem.utils.email;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import io.marto.aem.utils.freemarker.BaseFreemarkerTest;
+import io.marto.aem.utils.freemarker.FreemarkerTemplateFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.mail.EmailException;
 import org.apache.commons.mail.HtmlEmail;
 import org.junit.Before;
@@ -113,6 +120,38 @@ public class FreemarkerTemplatedMailerTest extends BaseFreemarkerTest {
         assertThat(msg, containsString("Subject: Test Email"));
 	}
 
+	@Test
+	public void testIndexedTemplatesArePreloaded() {
+		verify(bundle).getEntry(FreemarkerTemplateFactory.TEMPLATE_INDEX);
+	}
+
+	@Test
+	public void testLocalizedTemplateIsUsedForLocale() throws EmailException, IOException, MessagingException {
+		String recipients[] = new String[] { "joe@me.com" };
+		
+		mailer.sendEmail(recipients, "admin@marto.io", "Test Email", "/templates/helloworld.ftl", Locale.FRENCH, createModel());
+		
+		assertThat(getEmail(sentEmail.get()), containsString("Liste des pays"));
+	}
+
+	@Test
+	public void testInlineImagesAndAttachmentsAreEncodedOnce() throws EmailException, IOException, MessagingException {
+		String recipients[] = new String[] { "joe@me.com" };
+		URL logo = FreemarkerTemplatedMailerTest.class.getResource("/images/logo.gif");
+		MailPart inline = mailer.inline("logo", logo, "image/gif");
+		MailPart attachment = mailer.attachment("countries.txt", "India, United States".getBytes(StandardCharsets.UTF_8), "text/plain");
+		
+		mailer.sendEmail(recipients, "admin@marto.io", "Test Email", "/templates/helloworld.ftl", null, createModel(), inline, attachment);
+		String msg = getEmail(sentEmail.get());
+		
+		assertSame(inline.getContent(), mailer.inline("logo", logo, "image/gif").getContent());
+		assertThat(msg, containsString("multipart/related"));
+		assertThat(msg, containsString("Content-ID: <logo>"));
+		assertThat(msg, containsString("Content-Disposition: attachment; filename=countries.txt"));
+		assertThat(msg, containsString(Base64.encodeBase64String("India, United States".getBytes(StandardCharsets.UTF_8))));
+		assertThat(msg, containsString("FreeMarker Template example: Hello World!"));
+	}
+
 	
 	@Test(expected = EmailException.class)
 	public void testExceptionIsThrownWhenEmailGatewayDNE() throws EmailException, IOException, MessagingException {
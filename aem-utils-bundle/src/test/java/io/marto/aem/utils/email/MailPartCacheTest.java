@@ -0,0 +1,73 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+public class MailPartCacheTest {
+
+	private final MailPartCache cache = new MailPartCache(1024);
+
+	@Test
+	public void testIdenticalContentIsEncodedOnce() {
+		final EncodedPart first = cache.encode("banner".getBytes(StandardCharsets.UTF_8), "image/png");
+		final EncodedPart second = cache.encode("banner".getBytes(StandardCharsets.UTF_8), "image/png");
+
+		assertSame(first, second);
+		assertEquals("banner", new String(Base64.decodeBase64(first.getEncoded()), StandardCharsets.UTF_8));
+		assertEquals(first.getEncodedSize(), cache.getEncodedBytes());
+	}
+
+	@Test
+	public void testContentTypeIsPartOfTheKey() {
+		assertNotSame(cache.encode(new byte[] { 1, 2, 3 }, "image/png"), cache.encode(new byte[] { 1, 2, 3 }, "image/gif"));
+	}
+
+	@Test
+	public void testUrlContentIsShared() throws IOException {
+		final URL logo = MailPartCacheTest.class.getResource("/images/logo.gif");
+		assertSame(cache.encode(logo, "image/gif"), cache.encode(logo, "image/gif"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedPartsAreEvicted() {
+		final MailPartCache small = new MailPartCache(600);
+		final EncodedPart first = small.encode(new byte[300], "application/octet-stream");
+		final EncodedPart second = small.encode(new byte[301], "application/octet-stream");
+
+		assertEquals(second.getEncodedSize(), small.getEncodedBytes());
+		assertNotSame(first, small.encode(new byte[300], "application/octet-stream"));
+	}
+
+	@Test
+	public void testOversizedPartsAreNotCached() {
+		final EncodedPart large = cache.encode(new byte[2048], "application/octet-stream");
+		assertNotSame(large, cache.encode(new byte[2048], "application/octet-stream"));
+		assertEquals(0, cache.getEncodedBytes());
+	}
+}
@@ -0,0 +1,60 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.email;
+
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.HtmlEmail;
+
+import com.day.cq.mailer.MailingException;
+import com.day.cq.mailer.MessageGateway;
+import com.day.cq.mailer.MessageGatewayService;
+
+/**
+ * A gateway service that delivers HTML emails over SMTP to a fixed server, the way the AEM mail service does once configured.
+ */
+public class SmtpMessageGatewayService implements MessageGatewayService {
+
+    private final MessageGateway<HtmlEmail> gateway;
+
+    public SmtpMessageGatewayService(final String host, final int port) {
+        this.gateway = new MessageGateway<HtmlEmail>() {
+            @Override
+            public boolean handles(Class<? extends HtmlEmail> type) {
+                return HtmlEmail.class.isAssignableFrom(type);
+            }
+
+            @Override
+            public void send(HtmlEmail email) throws MailingException {
+                email.setHostName(host);
+                email.setSmtpPort(port);
+                try {
+                    email.send();
+                } catch (EmailException e) {
+                    throw new MailingException("Failed to send email", e);
+                }
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> MessageGateway<T> getGateway(Class<T> type) {
+        return HtmlEmail.class.isAssignableFrom(type) ? (MessageGateway<T>) (MessageGateway<?>) gateway : null;
+    }
+}
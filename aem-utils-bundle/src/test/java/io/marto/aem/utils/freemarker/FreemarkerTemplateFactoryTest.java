@@ -21,17 +21,33 @@ package io.marto.aem.utils.freemarker;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import io.marto.aem.utils.freemarker.RenderLimitExceededException.Limit;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import freemarker.template.Configuration;
 import freemarker.template.TemplateException;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -83,4 +99,308 @@ public class FreemarkerTemplateFactoryTest extends BaseFreemarkerTest {
 		assertThat(this.templateFactory.renderToStringBuffer("/templates/helloworld.ftl", model).toString(), containsString("FreeMarker Template example: Hello World!"));
 		assertEquals(2, loadCount.get());
 	}
+
+	@Test
+	public void testPreloadParsesIndexedTemplates() throws TemplateException, IOException {
+		assertEquals(1, this.templateFactory.preload());
+		final int loads = loadCount.get();
+		assertThat(this.templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel()).toString(), containsString("FreeMarker Template example: Hello World!"));
+		assertEquals(loads, loadCount.get());
+	}
+
+	@Test
+	public void testLocalizedRenderingFallsBackToLanguageAndCachesResolution() throws TemplateException, IOException {
+		final Map<String, Object> model = createModel();
+		assertThat(this.templateFactory.renderToStringBuffer("/templates/helloworld.ftl", Locale.CANADA_FRENCH, model).toString(), containsString("Exemple de modèle FreeMarker : Hello World!"));
+		final int loads = loadCount.get();
+		assertThat(this.templateFactory.renderToStringBuffer("/templates/helloworld.ftl", Locale.CANADA_FRENCH, model).toString(), containsString("Exemple de modèle FreeMarker : Hello World!"));
+		assertEquals(loads, loadCount.get());
+	}
+
+	@Test
+	public void testLocalizedRenderingFallsBackToDefaultTemplate() throws TemplateException, IOException {
+		final Map<String, Object> model = createModel();
+		assertThat(this.templateFactory.renderToStringBuffer("/templates/helloworld.ftl", Locale.GERMANY, model).toString(), containsString("FreeMarker Template example: Hello World!"));
+		assertThat(this.templateFactory.renderToStringBuffer("/templates/helloworld.ftl", null, model).toString(), containsString("FreeMarker Template example: Hello World!"));
+	}
+
+	@Test
+	public void testMissingLocalizedTemplateIsRemembered() throws TemplateException, IOException {
+		for (int i = 0; i < 2; i++) {
+			try {
+				this.templateFactory.renderToStringBuffer("/templates/non-existing-template.ftl", Locale.CANADA_FRENCH, new HashMap());
+				fail("Expected TemplateException");
+			} catch (TemplateException e) {
+				assertThat(e.getMessage(), containsString("/templates/non-existing-template.ftl"));
+			}
+			assertEquals(3, loadCount.get());
+		}
+	}
+
+	@Test
+	public void testOutputSizeLimit() throws TemplateException, IOException {
+		assertLimitExceeded(new RenderLimits(0, 20, 0), createModel(), Limit.OUTPUT_SIZE);
+	}
+
+	@Test
+	public void testWritesLimit() throws TemplateException, IOException {
+		assertLimitExceeded(new RenderLimits(0, 0, 3), createModel(), Limit.WRITES);
+	}
+
+	@Test
+	public void testTimeoutLimit() throws TemplateException, IOException {
+		final Map<String, Object> model = createModel();
+		model.put("message", new Object() {
+			@Override
+			public String toString() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return "Slow World!";
+			}
+		});
+		assertLimitExceeded(new RenderLimits(20, 0, 0), model, Limit.TIMEOUT);
+	}
+
+	@Test
+	public void testTimeoutLimitStopsRenderThatDoesNotWrite() throws TemplateException, IOException {
+		final Map<String, Object> model = createModel();
+		final List<Object> countries = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			countries.add(new Object() {
+				@Override
+				public String toString() {
+					sleep(10);
+					return "Slow Country";
+				}
+			});
+		}
+		model.put("countries", countries);
+		this.templateFactory.setRenderLimits(new RenderLimits(50, 0, 0));
+
+		final long start = System.currentTimeMillis();
+		try {
+			this.templateFactory.renderToStringBuffer("/templates/silent.ftl", model);
+			fail("Expected RenderLimitExceededException");
+		} catch (RenderLimitExceededException e) {
+			assertEquals(Limit.TIMEOUT, e.getLimit());
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(1, this.templateFactory.getMetrics().getLimitExceededCount(Limit.TIMEOUT));
+	}
+
+	@Test
+	public void testTimeoutLimitStopsLoopThatNeitherWritesNorReadsTheModel() throws TemplateException, IOException {
+		this.templateFactory.setRenderLimits(new RenderLimits(50, 0, 0));
+
+		final long start = System.currentTimeMillis();
+		try {
+			this.templateFactory.renderToStringBuffer("/templates/spin.ftl", createModel());
+			fail("Expected RenderLimitExceededException");
+		} catch (RenderLimitExceededException e) {
+			assertEquals(Limit.TIMEOUT, e.getLimit());
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	@Test
+	public void testLoopGuardDoesNotChangeOutput() throws TemplateException, IOException {
+		final Configuration plain = new Configuration();
+		plain.setClassForTemplateLoading(getClass(), "/");
+		final StringWriter expected = new StringWriter();
+		plain.getTemplate("/templates/guarded.ftl").process(createModel(), expected);
+
+		assertThat(expected.toString(), containsString("<#list a as b>"));
+		assertEquals(expected.toString(), this.templateFactory.renderToStringBuffer("/templates/guarded.ftl", createModel()).toString());
+	}
+
+	@Test
+	public void testRenderingWithinLimits() throws TemplateException, IOException {
+		this.templateFactory.setRenderLimits(new RenderLimits(10000, 10000, 10000));
+		assertThat(this.templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel()).toString(), containsString("4. France"));
+		assertEquals(1, this.templateFactory.getMetrics().getRenderCount());
+	}
+
+	private void assertLimitExceeded(RenderLimits limits, Map<String, Object> model, Limit limit) throws TemplateException, IOException {
+		this.templateFactory.setRenderLimits(limits);
+		try {
+			this.templateFactory.renderToStringBuffer("/templates/helloworld.ftl", model);
+			fail("Expected RenderLimitExceededException");
+		} catch (RenderLimitExceededException e) {
+			assertEquals(limit, e.getLimit());
+			assertThat(e.getMessage(), containsString("/templates/helloworld.ftl"));
+		}
+		assertEquals(1, this.templateFactory.getMetrics().getLimitExceededCount(limit));
+	}
+
+	@Test
+	public void testMinifiedRendering() throws TemplateException, IOException {
+		this.templateFactory.setMinifyHtml(true);
+		final String output = this.templateFactory.renderToStringBuffer("/templates/newsletter.ftl", createModel()).toString();
+
+		assertEquals("<html>\n<head>\n<style>\n            p  {  margin: 0 }\n        </style>\n</head>\n<body>\n"
+				+ "<!--[if mso]><table><tr><td><![endif]-->\n<!--[if !mso]><!-->\n<p> not outlook </p>\n<!--<![endif]-->\n"
+				+ "<h1> Hello World! </h1>\n<ul>\n<li>India</li>\n<li>United States</li>\n"
+				+ "<li>Germany</li>\n<li>France</li>\n</ul>\n<pre>  as   is  </pre>\n</body>\n</html>", output);
+	}
+
+	@Test
+	public void testMinifiedSizeSavingsAreReportedPerTemplate() throws TemplateException, IOException {
+		final String original = this.templateFactory.renderToStringBuffer("/templates/newsletter.ftl", createModel()).toString();
+		assertTrue(this.templateFactory.getMetrics().getSizeSavings().isEmpty());
+
+		this.templateFactory.setMinifyHtml(true);
+		final String minified = this.templateFactory.renderToStringBuffer("/templates/newsletter.ftl", createModel()).toString();
+		this.templateFactory.renderToStringBuffer("/templates/newsletter.ftl", createModel());
+
+		final TemplateMetrics.SizeSavings savings = this.templateFactory.getMetrics().getSizeSavings().get("/templates/newsletter.ftl");
+		assertEquals(2, savings.getRenderCount());
+		assertEquals(2 * original.length(), savings.getRenderedChars());
+		assertEquals(2 * minified.length(), savings.getWrittenChars());
+		assertEquals(2 * (original.length() - minified.length()), savings.getSavedChars());
+	}
+
+	@Test
+	public void testMinificationStreamsAcrossWrites() throws IOException {
+		final String html = "  <p>\n  a  <!-- x --> b </p>\n<!-- y --><pre> c </PRE>\n<script>if (a</b) {}</script>  ";
+		final StringWriter writer = new StringWriter();
+		final HtmlMinifyingWriter minifier = new HtmlMinifyingWriter(writer);
+		for (int i = 0; i < html.length(); i++) {
+			minifier.write(html.charAt(i));
+		}
+		minifier.finish();
+		assertEquals("<p>\na b </p>\n<pre> c </PRE>\n<script>if (a</b) {}</script>", writer.toString());
+	}
+
+	@Test
+	public void testGzippedRendering() throws TemplateException, IOException {
+		this.templateFactory.setMinifyHtml(true);
+		final String expected = this.templateFactory.renderToStringBuffer("/templates/newsletter.ftl", createModel()).toString();
+
+		final byte[] gzipped = this.templateFactory.renderGzipped("/templates/newsletter.ftl", null, createModel());
+		final StringBuilder output = new StringBuilder();
+		try (Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(gzipped)), StandardCharsets.UTF_8)) {
+			for (int c = reader.read(); c >= 0; c = reader.read()) {
+				output.append((char) c);
+			}
+		}
+		assertEquals(expected, output.toString());
+	}
+
+	@Test
+	public void testFragmentsAreIncludedInlineWithoutExecutor() throws TemplateException, IOException {
+		assertSectionsInOrder(this.templateFactory.renderToStringBuffer("/templates/sections.ftl", createModel()).toString());
+	}
+
+	@Test
+	public void testFragmentsAreRenderedConcurrentlyInOrder() throws TemplateException, IOException {
+		final ExecutorService executor = FreemarkerTemplateFactory.newFragmentExecutor(2);
+		try {
+			this.templateFactory.setFragmentExecutor(executor);
+			final Map<String, Object> model = createModel();
+			model.put("message", executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return "Hello World!";
+				}
+			}));
+			assertSectionsInOrder(this.templateFactory.renderToStringBuffer("/templates/sections.ftl", model).toString());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSlowFragmentsOverlap() throws TemplateException, IOException {
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			this.templateFactory.setFragmentExecutor(executor);
+			final Map<String, Object> model = createModel();
+			model.put("message", new Object() {
+				@Override
+				public String toString() {
+					sleep(300);
+					return "Hello World!";
+				}
+			});
+			model.put("countries", Collections.singletonList(new Object() {
+				@Override
+				public String toString() {
+					sleep(300);
+					return "France";
+				}
+			}));
+			final long start = System.currentTimeMillis();
+			this.templateFactory.renderToStringBuffer("/templates/sections.ftl", model);
+			assertTrue(System.currentTimeMillis() - start < 550);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSlowFragmentIsStoppedByTimeout() throws TemplateException, IOException {
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			this.templateFactory.setFragmentExecutor(executor);
+			this.templateFactory.setRenderLimits(new RenderLimits(100, 0, 0));
+			final Map<String, Object> model = createModel();
+			model.put("message", new Object() {
+				@Override
+				public String toString() {
+					sleep(2000);
+					return "Hello World!";
+				}
+			});
+			final long start = System.currentTimeMillis();
+			try {
+				this.templateFactory.renderToStringBuffer("/templates/sections.ftl", model);
+				fail("Expected RenderLimitExceededException");
+			} catch (RenderLimitExceededException e) {
+				assertEquals(Limit.TIMEOUT, e.getLimit());
+			}
+			assertTrue(System.currentTimeMillis() - start < 1000);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testFragmentOutputIsBounded() throws TemplateException, IOException {
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			this.templateFactory.setFragmentExecutor(executor);
+			this.templateFactory.setRenderLimits(new RenderLimits(0, 200, 0));
+			final Map<String, Object> model = createModel();
+			model.put("countries", Collections.nCopies(100000, "France"));
+			try {
+				this.templateFactory.renderToStringBuffer("/templates/sections.ftl", model);
+				fail("Expected RenderLimitExceededException");
+			} catch (RenderLimitExceededException e) {
+				assertEquals(Limit.OUTPUT_SIZE, e.getLimit());
+			}
+			assertEquals(1, this.templateFactory.getMetrics().getLimitExceededCount(Limit.OUTPUT_SIZE));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void assertSectionsInOrder(String output) {
+		int last = -1;
+		for (String section : new String[] { "Header", "Section: Hello World!", "Middle", "1. India", "4. France", "Footer" }) {
+			final int index = output.indexOf(section);
+			assertTrue(section + " out of order in " + output, index > last);
+			last = index;
+		}
+	}
 }
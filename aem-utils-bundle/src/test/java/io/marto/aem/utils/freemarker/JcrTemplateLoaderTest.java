@@ -0,0 +1,228 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.freemarker;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import freemarker.template.TemplateException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class JcrTemplateLoaderTest extends BaseFreemarkerTest {
+
+	private static final String ROOT = "/apps/marto/templates";
+
+	@Mock
+	private Session session;
+
+	@Mock
+	private Workspace workspace;
+
+	@Mock
+	private ObservationManager observationManager;
+
+	private final Map<String, String> repository = new HashMap<String, String>();
+	private final Map<String, String> unseen = new HashMap<String, String>();
+	private final AtomicInteger repositoryReads = new AtomicInteger();
+
+	private FreemarkerTemplateFactory templateFactory;
+	private EventListener listener;
+
+	@Before
+	public void setup() {
+		super.setup();
+		try {
+			when(session.getWorkspace()).thenReturn(workspace);
+			doAnswer(new Answer<Void>() {
+				@Override
+				public Void answer(InvocationOnMock invocation) throws Throwable {
+					repository.putAll(unseen);
+					unseen.clear();
+					return null;
+				}
+			}).when(session).refresh(anyBoolean());
+			when(workspace.getObservationManager()).thenReturn(observationManager);
+			when(session.nodeExists(anyString())).then(new Answer<Boolean>() {
+				@Override
+				public Boolean answer(InvocationOnMock invocation) throws Throwable {
+					return repository.containsKey(invocation.getArgumentAt(0, String.class));
+				}
+			});
+			when(session.getNode(anyString())).then(new Answer<Node>() {
+				@Override
+				public Node answer(InvocationOnMock invocation) throws Throwable {
+					return fileNode(invocation.getArgumentAt(0, String.class));
+				}
+			});
+
+			templateFactory = new FreemarkerTemplateFactory(bundle, new JcrTemplateLoader(session, ROOT + "/"));
+
+			final ArgumentCaptor<EventListener> captor = ArgumentCaptor.forClass(EventListener.class);
+			verify(observationManager).addEventListener(captor.capture(), anyInt(), eq(ROOT), eq(true), any(String[].class), any(String[].class), anyBoolean());
+			listener = captor.getValue();
+		} catch (RepositoryException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Test
+	public void testRepositoryTemplateOverridesBundleTemplate() throws TemplateException, IOException {
+		repository.put(ROOT + "/templates/helloworld.ftl", "Repository says ${message}");
+
+		assertEquals("Repository says Hello World!", templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel()).toString());
+		assertEquals(0, loadCount.get());
+	}
+
+	@Test
+	public void testFallsBackToBundleTemplate() throws TemplateException, IOException {
+		assertThat(templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel()).toString(), containsString("FreeMarker Template example: Hello World!"));
+		assertEquals(1, loadCount.get());
+	}
+
+	@Test
+	public void testCachedTemplateIsNotReadAgain() throws TemplateException, IOException {
+		repository.put(ROOT + "/templates/helloworld.ftl", "Repository says ${message}");
+
+		templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel());
+		templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel());
+		assertEquals(1, repositoryReads.get());
+	}
+
+	@Test
+	public void testChangedTemplateIsEvicted() throws TemplateException, IOException {
+		repository.put(ROOT + "/templates/helloworld.ftl", "Repository says ${message}");
+		templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel());
+
+		repository.put(ROOT + "/templates/helloworld.ftl", "Repository now says ${message}");
+		whenRepositoryChanges(Event.PROPERTY_CHANGED, ROOT + "/templates/helloworld.ftl/jcr:content/jcr:data");
+
+		assertEquals("Repository now says Hello World!", templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel()).toString());
+		assertEquals(2, repositoryReads.get());
+	}
+
+	@Test
+	public void testSessionIsRefreshedBeforeEviction() throws TemplateException, IOException {
+		repository.put(ROOT + "/templates/helloworld.ftl", "Repository says ${message}");
+		templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel());
+
+		// the session doesn't see the change that triggered the event until it is refreshed
+		unseen.put(ROOT + "/templates/helloworld.ftl", "Repository now says ${message}");
+		whenRepositoryChanges(Event.PROPERTY_CHANGED, ROOT + "/templates/helloworld.ftl/jcr:content/jcr:data");
+
+		assertEquals("Repository now says Hello World!", templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel()).toString());
+	}
+
+	@Test
+	public void testAddedTemplateOverridesCachedBundleTemplate() throws TemplateException, IOException {
+		templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel());
+
+		repository.put(ROOT + "/templates/helloworld.ftl", "Repository says ${message}");
+		whenRepositoryChanges(Event.NODE_ADDED, ROOT + "/templates/helloworld.ftl");
+
+		assertEquals("Repository says Hello World!", templateFactory.renderToStringBuffer("/templates/helloworld.ftl", createModel()).toString());
+	}
+
+	@Test
+	public void testCloseStopsListening() throws RepositoryException {
+		templateFactory.close();
+		verify(observationManager).removeEventListener(listener);
+	}
+
+	@Test
+	public void testToTemplateName() {
+		final JcrTemplateLoader loader = new JcrTemplateLoader(session, ROOT);
+		assertEquals("/mail/welcome.ftl", loader.toTemplateName(ROOT + "/mail/welcome.ftl/jcr:content/jcr:data"));
+		assertEquals("/mail", loader.toTemplateName(ROOT + "/mail"));
+		assertNull(loader.toTemplateName("/apps/marto/other/welcome.ftl"));
+	}
+
+	private void whenRepositoryChanges(int type, String path) {
+		try {
+			final Event event = mock(Event.class);
+			when(event.getType()).thenReturn(type);
+			when(event.getPath()).thenReturn(path);
+			final EventIterator events = mock(EventIterator.class);
+			when(events.hasNext()).thenReturn(true, false);
+			when(events.nextEvent()).thenReturn(event);
+			listener.onEvent(events);
+		} catch (RepositoryException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Node fileNode(final String path) throws RepositoryException {
+		final Property data = mock(Property.class);
+		when(data.getBinary()).then(new Answer<Binary>() {
+			@Override
+			public Binary answer(InvocationOnMock invocation) throws Throwable {
+				repositoryReads.incrementAndGet();
+				final Binary binary = mock(Binary.class);
+				final InputStream stream = new ByteArrayInputStream(repository.get(path).getBytes(StandardCharsets.UTF_8));
+				when(binary.getStream()).thenReturn(stream);
+				return binary;
+			}
+		});
+		final Node content = mock(Node.class);
+		when(content.hasProperty(Property.JCR_DATA)).thenReturn(true);
+		when(content.getProperty(Property.JCR_DATA)).thenReturn(data);
+		final Node file = mock(Node.class);
+		when(file.hasNode(Node.JCR_CONTENT)).thenReturn(true);
+		when(file.getNode(Node.JCR_CONTENT)).thenReturn(content);
+		return file;
+	}
+}
@@ -0,0 +1,3 @@
+<#list countries as country>
+    ${country_index + 1}. ${country}
+</#list>
@@ -0,0 +1,7 @@
+<#macro item value>[${value}]</#macro>
+<#function double x><#return x * 2></#function>
+<#list countries as country>
+<@item value=country/>
+</#list>
+<#list 1..3 as i>${double(i)}<#sep>,</#list>
+<#noparse><#list a as b></#noparse> ${"<#list a as b>"}
@@ -0,0 +1,8 @@
+Exemple de modèle FreeMarker : ${message}  
+ 
+=======================
+===  Liste des pays  ===
+=======================
+<#list countries as country>
+    ${country_index + 1}. ${country}
+</#list>
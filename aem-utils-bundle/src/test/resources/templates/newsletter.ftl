@@ -0,0 +1,21 @@
+<html>
+    <head>
+        <!-- newsletter styles -->
+        <style>
+            p  {  margin: 0 }
+        </style>
+    </head>
+    <body>
+        <!--[if mso]><table><tr><td><![endif]-->
+        <!--[if !mso]><!-->
+        <p>  not   outlook  </p>
+        <!--<![endif]-->
+        <h1>   ${message}   </h1>
+        <ul>
+        <#list countries as country>
+            <li>${country}</li>
+        </#list>
+        </ul>
+        <pre>  as   is  </pre>
+    </body>
+</html>
@@ -0,0 +1 @@
+Section: ${message}
@@ -0,0 +1,5 @@
+Header
+<@fragment template="/templates/section.ftl"/>
+Middle
+<@fragment template="/templates/countries.ftl"/>
+Footer
@@ -0,0 +1,2 @@
+<#list countries as country><#if country == "">${country}</#if></#list>
+done
@@ -0,0 +1,2 @@
+<#list 1..1000000000 as i><#assign x = i * 2></#list>
+done
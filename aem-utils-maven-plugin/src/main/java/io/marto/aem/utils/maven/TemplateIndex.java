@@ -0,0 +1,158 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.maven;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.codehaus.plexus.util.DirectoryScanner;
+
+import freemarker.core.ParseException;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Parses the freemarker templates found under resource directories and writes the index of the valid ones, which
+ * <tt>FreemarkerTemplateFactory.preload()</tt> reads to parse all templates of a bundle on activation.
+ */
+public class TemplateIndex {
+
+    /**
+     * The location of the index within the bundle, one template path per line.
+     */
+    public static final String INDEX_PATH = "META-INF/freemarker/templates.idx";
+
+    private final Configuration config = new Configuration();
+    private final String extension;
+    private final TreeSet<String> templates = new TreeSet<>();
+    private final List<String> errors = new ArrayList<>();
+
+    /**
+     * @param extension  the file extension of the templates, eg: <tt>.ftl</tt>
+     */
+    public TemplateIndex(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * Parse all templates under a resource directory.
+     *
+     * @param resourceDirectory  the root of the resources, template paths are relative to it
+     * @throws IOException  if the templates can't be read
+     */
+    public void add(File resourceDirectory) throws IOException {
+        add(resourceDirectory, null, null, null);
+    }
+
+    /**
+     * Parse the templates of a resource directory the way it is packaged.
+     *
+     * @param resourceDirectory  the root of the resources
+     * @param targetPath         the path the resources are packaged under (see <tt>Resource.getTargetPath()</tt>), or null for the root
+     * @param includes           the patterns of the files packaged, or null/empty for all files
+     * @param excludes           the patterns of the files that are not packaged, or null
+     * @throws IOException  if the templates can't be read
+     */
+    public void add(File resourceDirectory, String targetPath, List<String> includes, List<String> excludes) throws IOException {
+        if (!resourceDirectory.isDirectory()) {
+            return;
+        }
+        final DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(resourceDirectory);
+        if (includes != null && !includes.isEmpty()) {
+            scanner.setIncludes(includes.toArray(new String[includes.size()]));
+        }
+        if (excludes != null && !excludes.isEmpty()) {
+            scanner.setExcludes(excludes.toArray(new String[excludes.size()]));
+        }
+        scanner.addDefaultExcludes();
+        scanner.scan();
+
+        final String prefix = targetPath == null || strip(targetPath).isEmpty() ? "/" : "/" + strip(targetPath) + "/";
+        for (String file : scanner.getIncludedFiles()) {
+            if (file.endsWith(extension)) {
+                parse(prefix + file.replace(File.separatorChar, '/'), new File(resourceDirectory, file).toPath());
+            }
+        }
+    }
+
+    private static String strip(String path) {
+        String stripped = path.replace(File.separatorChar, '/');
+        while (stripped.startsWith("/")) {
+            stripped = stripped.substring(1);
+        }
+        while (stripped.endsWith("/")) {
+            stripped = stripped.substring(0, stripped.length() - 1);
+        }
+        return stripped;
+    }
+
+    private void parse(String templatePath, Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            new Template(templatePath, reader, config);
+            templates.add(templatePath);
+        } catch (ParseException e) {
+            errors.add(format("%s: %s", file, e.getMessage()));
+        }
+    }
+
+    /**
+     * @return the paths of the templates that parsed successfully, in order
+     */
+    public List<String> getTemplates() {
+        return new ArrayList<>(templates);
+    }
+
+    /**
+     * @return a description of every template that failed to parse
+     */
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Write the index to {@link #INDEX_PATH} under <tt>outputDirectory</tt>.
+     *
+     * @param outputDirectory  the directory the index is written to
+     * @return the index file
+     * @throws IOException  if the index can't be written
+     */
+    public File write(File outputDirectory) throws IOException {
+        final File index = new File(outputDirectory, INDEX_PATH);
+        Files.createDirectories(index.getParentFile().toPath());
+        try (Writer writer = Files.newBufferedWriter(index.toPath(), StandardCharsets.UTF_8)) {
+            for (String template : templates) {
+                writer.write(template);
+                writer.write('\n');
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.maven;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.model.Resource;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Parses every freemarker template in the project resources, failing the build on syntax errors, and adds an index of the templates
+ * to the project resources so it is packaged into the bundle. Templates are indexed by the path they are packaged at, honouring each resource's
+ * <tt>targetPath</tt>, includes and excludes.
+ */
+@Mojo(name = "index-templates", defaultPhase = LifecyclePhase.GENERATE_RESOURCES, threadSafe = true)
+public class TemplateIndexMojo extends AbstractMojo {
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    /**
+     * The directory the index is generated in, it is added as a project resource.
+     */
+    @Parameter(defaultValue = "${project.build.directory}/generated-resources/freemarker", required = true)
+    private File outputDirectory;
+
+    /**
+     * The file extension of the templates.
+     */
+    @Parameter(defaultValue = ".ftl", required = true)
+    private String extension;
+
+    /**
+     * Skip validating and indexing templates.
+     */
+    @Parameter(property = "freemarker.index.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (skip) {
+            getLog().info("Skipping freemarker template indexing");
+            return;
+        }
+        final TemplateIndex index = new TemplateIndex(extension);
+        try {
+            for (Resource resource : project.getResources()) {
+                index.add(new File(resource.getDirectory()), resource.getTargetPath(), resource.getIncludes(), resource.getExcludes());
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read freemarker templates", e);
+        }
+        if (!index.getErrors().isEmpty()) {
+            for (String error : index.getErrors()) {
+                getLog().error(error);
+            }
+            throw new MojoFailureException(format("%d freemarker template(s) failed to parse", index.getErrors().size()));
+        }
+        try {
+            index.write(outputDirectory);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to write the freemarker template index", e);
+        }
+        final Resource generated = new Resource();
+        generated.setDirectory(outputDirectory.getAbsolutePath());
+        project.addResource(generated);
+        getLog().info(format("Indexed %d freemarker template(s)", index.getTemplates().size()));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.maven;
+
+import static org.codehaus.plexus.util.ReflectionUtils.setVariableValueInObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.maven.model.Resource;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the mojo against a project model, as the build would once its parameters are injected.
+ */
+public class TemplateIndexMojoTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MavenProject project = new MavenProject();
+    private File output;
+
+    @Before
+    public void setup() throws IOException {
+        output = new File(folder.getRoot(), "generated");
+    }
+
+    @Test
+    public void testIndexIsAddedToThePackagedResources() throws Exception {
+        final File resources = folder.newFolder("resources");
+        givenFile(resources, "templates/helloworld.ftl", "Hello ${name}");
+        givenResource(resources, null);
+
+        execute();
+
+        final Resource generated = project.getResources().get(project.getResources().size() - 1);
+        assertEquals(output.getAbsolutePath(), generated.getDirectory());
+        assertNull(generated.getTargetPath());
+        assertEquals(Arrays.asList("/templates/helloworld.ftl"), index(generated));
+    }
+
+    @Test
+    public void testTargetPathIncludesAndExcludesAreHonoured() throws Exception {
+        final File mail = folder.newFolder("mail");
+        givenFile(mail, "welcome.ftl", "Welcome ${name}");
+        givenFile(mail, "drafts/broken.ftl", "<#list countries as country>");
+        givenFile(mail, "unlisted.ftl", "Hello ${name}");
+        final Resource resource = givenResource(mail, "/templates/mail/");
+        resource.addInclude("*.ftl");
+        resource.addInclude("drafts/**");
+        resource.addExclude("drafts/**");
+        resource.addExclude("unlisted.ftl");
+
+        execute();
+
+        assertEquals(Arrays.asList("/templates/mail/welcome.ftl"), index(project.getResources().get(project.getResources().size() - 1)));
+    }
+
+    @Test
+    public void testInvalidTemplateFailsTheBuild() throws Exception {
+        final File resources = folder.newFolder("resources");
+        givenFile(resources, "templates/broken.ftl", "<#list countries as country>");
+        givenResource(resources, null);
+
+        try {
+            execute();
+            fail("Expected MojoFailureException");
+        } catch (MojoFailureException e) {
+            assertEquals(1, project.getResources().size());
+        }
+        assertFalse(new File(output, TemplateIndex.INDEX_PATH).exists());
+    }
+
+    private void execute() throws IllegalAccessException, MojoExecutionException, MojoFailureException {
+        final TemplateIndexMojo mojo = new TemplateIndexMojo();
+        setVariableValueInObject(mojo, "project", project);
+        setVariableValueInObject(mojo, "outputDirectory", output);
+        setVariableValueInObject(mojo, "extension", ".ftl");
+        mojo.execute();
+    }
+
+    private Resource givenResource(File directory, String targetPath) {
+        final Resource resource = new Resource();
+        resource.setDirectory(directory.getAbsolutePath());
+        resource.setTargetPath(targetPath);
+        project.addResource(resource);
+        return resource;
+    }
+
+    private static List<String> index(Resource generated) throws IOException {
+        return Files.readAllLines(new File(generated.getDirectory(), TemplateIndex.INDEX_PATH).toPath(), StandardCharsets.UTF_8);
+    }
+
+    private static void givenFile(File root, String path, String content) throws IOException {
+        final File file = new File(root, path);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.maven;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TemplateIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testValidTemplatesAreIndexed() throws IOException {
+        final File resources = folder.newFolder("resources");
+        givenFile(resources, "templates/mail/welcome.ftl", "Hello ${name}");
+        givenFile(resources, "templates/helloworld.ftl", "<#list countries as country>${country}</#list>");
+        givenFile(resources, "templates/readme.txt", "<#list");
+
+        final TemplateIndex index = new TemplateIndex(".ftl");
+        index.add(resources);
+
+        assertTrue(index.getErrors().isEmpty());
+        assertEquals(Arrays.asList("/templates/helloworld.ftl", "/templates/mail/welcome.ftl"), index.getTemplates());
+
+        final File written = index.write(folder.newFolder("generated"));
+        assertEquals(Arrays.asList("/templates/helloworld.ftl", "/templates/mail/welcome.ftl"), Files.readAllLines(written.toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testInvalidTemplatesAreReported() throws IOException {
+        final File resources = folder.newFolder("resources");
+        givenFile(resources, "templates/broken.ftl", "<#list countries as country>${country}");
+        givenFile(resources, "templates/helloworld.ftl", "Hello ${name}");
+
+        final TemplateIndex index = new TemplateIndex(".ftl");
+        index.add(resources);
+
+        assertEquals(1, index.getErrors().size());
+        assertThat(index.getErrors().get(0), containsString("broken.ftl"));
+        assertEquals(Arrays.asList("/templates/helloworld.ftl"), index.getTemplates());
+    }
+
+    @Test
+    public void testMissingResourceDirectoryIsIgnored() throws IOException {
+        final TemplateIndex index = new TemplateIndex(".ftl");
+        index.add(new File(folder.getRoot(), "does-not-exist"));
+        assertTrue(index.getTemplates().isEmpty());
+    }
+
+    private void givenFile(File root, String path, String content) throws IOException {
+        final File file = new File(root, path);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
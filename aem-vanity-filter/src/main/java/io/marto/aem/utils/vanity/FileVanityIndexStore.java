@@ -0,0 +1,337 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.vanity;
+
+import static java.lang.String.format;
+import io.marto.aem.utils.vanity.VanityIndex.Redirect;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares {@link VanityIndex} versions between nodes through a directory (eg: a shared mount). Every published version is written as a full snapshot
+ * and as a delta from the previous version. Files are written to a temporary file first and moved into place, so readers never see a partial version.
+ * Readers that are a few versions behind apply the deltas, readers that are further behind (or new) load the latest snapshot. A corrupt delta is
+ * skipped in favour of the snapshot, a corrupt snapshot fails the update.
+ */
+public class FileVanityIndexStore {
+
+    /**
+     * The number of most recent versions kept in the directory.
+     */
+    public static final int RETAINED_VERSIONS = 20;
+
+    private final Path directory;
+
+    /**
+     * @param directory  the shared directory, it is created if it doesn't exist
+     */
+    public FileVanityIndexStore(File directory) {
+        this.directory = directory.toPath();
+    }
+
+    /**
+     * @return the latest published version, or -1 if nothing has been published
+     * @throws IOException  if the directory can't be read
+     */
+    public long getLatestVersion() throws IOException {
+        long latest = -1;
+        for (long version : listVersions(SNAPSHOT)) {
+            latest = Math.max(latest, version);
+        }
+        return latest;
+    }
+
+    /**
+     * Publish a new version of the index.
+     *
+     * @param index     the new version of the index
+     * @param previous  the version the new version is based on, or null if there isn't one
+     * @throws IOException  if the index can't be written
+     */
+    public void publish(VanityIndex index, VanityIndex previous) throws IOException {
+        Files.createDirectories(directory);
+        if (previous != null) {
+            writeDelta(VanityIndexDelta.between(previous, index));
+        }
+        writeSnapshot(index);
+        prune(index.getVersion() - RETAINED_VERSIONS);
+    }
+
+    /**
+     * Bring <code>current</code> up to the latest published version.
+     *
+     * @param current  the index held by the caller, or null if it has none
+     * @return the latest index, <code>current</code> if it is already the latest (or nothing was published)
+     * @throws IOException  if the index can't be read or the latest snapshot is corrupt
+     */
+    public VanityIndex update(VanityIndex current) throws IOException {
+        final long latest = getLatestVersion();
+        if (latest < 0 || (current != null && current.getVersion() >= latest)) {
+            return current;
+        }
+        VanityIndex index = current;
+        while (index != null && index.getVersion() < latest) {
+            final VanityIndexDelta delta = readDelta(index.getVersion() + 1);
+            index = delta == null ? null : index.apply(delta);
+        }
+        if (index == null) {
+            index = readSnapshot(latest);
+        }
+        LOGGER.debug("Updated vanity index to version {}", index.getVersion());
+        return index;
+    }
+
+    private void writeSnapshot(VanityIndex index) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        lines.add(SNAPSHOT_HEADER + TAB + index.getVersion());
+        for (Entry<String, Redirect> entry : index.getRedirects().entrySet()) {
+            lines.add(escape(entry.getKey()) + TAB + toLine(entry.getValue()));
+        }
+        write(index.getVersion() + SNAPSHOT, lines);
+    }
+
+    private void writeDelta(VanityIndexDelta delta) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        lines.add(DELTA_HEADER + TAB + delta.getBaseVersion() + TAB + delta.getVersion());
+        for (Entry<String, Redirect> entry : delta.getPut().entrySet()) {
+            lines.add(PUT + TAB + escape(entry.getKey()) + TAB + toLine(entry.getValue()));
+        }
+        for (String removed : delta.getRemoved()) {
+            lines.add(REMOVE + TAB + escape(removed));
+        }
+        write(delta.getVersion() + DELTA, lines);
+    }
+
+    private void write(String name, List<String> lines) throws IOException {
+        final Path tmp = Files.createTempFile(directory, name, ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private VanityIndex readSnapshot(long version) throws IOException {
+        final List<String> lines = read(version + SNAPSHOT);
+        if (lines == null || lines.isEmpty() || !lines.get(0).equals(SNAPSHOT_HEADER + TAB + version)) {
+            throw new IOException(format("Vanity index snapshot %d is missing or corrupt", version));
+        }
+        final Map<String, Redirect> redirects = new HashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            final String[] fields = line.split(TAB, -1);
+            final String vanity = fields.length == 4 ? unescape(fields[0]) : null;
+            final Redirect redirect = vanity == null ? null : toRedirect(fields, 1);
+            if (redirect == null) {
+                throw new IOException(format("Vanity index snapshot %d is corrupt, can't read '%s'", version, line));
+            }
+            redirects.put(vanity, redirect);
+        }
+        return new VanityIndex(version, redirects);
+    }
+
+    /**
+     * @return the delta that leads to <code>version</code>, or null if it is no longer (or not yet) available
+     */
+    private VanityIndexDelta readDelta(long version) throws IOException {
+        final List<String> lines = read(version + DELTA);
+        if (lines == null || lines.isEmpty()) {
+            return null;
+        }
+        final String[] header = lines.get(0).split(TAB);
+        if (header.length != 3 || !DELTA_HEADER.equals(header[0]) || !String.valueOf(version).equals(header[2])) {
+            LOGGER.warn("Ignoring corrupt vanity index delta {}", version);
+            return null;
+        }
+        final Map<String, Redirect> put = new HashMap<>();
+        final Set<String> removed = new HashSet<>();
+        for (String line : lines.subList(1, lines.size())) {
+            final String[] fields = line.split(TAB, -1);
+            final String vanity = fields.length > 1 ? unescape(fields[1]) : null;
+            final Redirect redirect = vanity != null && fields.length == 5 && PUT.equals(fields[0]) ? toRedirect(fields, 2) : null;
+            if (redirect != null) {
+                put.put(vanity, redirect);
+            } else if (vanity != null && fields.length == 2 && REMOVE.equals(fields[0])) {
+                removed.add(vanity);
+            } else {
+                LOGGER.warn("Ignoring corrupt vanity index delta {}, can't read '{}'", version, line);
+                return null;
+            }
+        }
+        try {
+            return new VanityIndexDelta(Long.parseLong(header[1]), version, put, removed);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Ignoring corrupt vanity index delta {}", version);
+            return null;
+        }
+    }
+
+    private static String toLine(Redirect redirect) {
+        return escape(redirect.getPath()) + TAB + escape(redirect.getTarget()) + TAB + redirect.getStatus();
+    }
+
+    /**
+     * @return the redirect held in the three fields starting at <code>from</code>, or null if they don't hold one
+     */
+    private static Redirect toRedirect(String[] fields, int from) {
+        final String path = unescape(fields[from]);
+        final String target = unescape(fields[from + 1]);
+        if (path == null || target == null) {
+            return null;
+        }
+        try {
+            return new Redirect(path, target, Integer.parseInt(fields[from + 2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Escape the characters that separate fields and lines, so that any value fits in one field.
+     */
+    private static String escape(String value) {
+        final StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * @return the value <code>escaped</code> was escaped from, or null if it isn't a validly escaped value
+     */
+    private static String unescape(String escaped) {
+        if (escaped.indexOf('\\') < 0) {
+            return escaped;
+        }
+        final StringBuilder value = new StringBuilder(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            final char c = escaped.charAt(i);
+            if (c != '\\') {
+                value.append(c);
+            } else if (++i == escaped.length()) {
+                return null;
+            } else {
+                switch (escaped.charAt(i)) {
+                    case '\\':
+                        value.append('\\');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    default:
+                        return null;
+                }
+            }
+        }
+        return value.toString();
+    }
+
+    private List<String> read(String name) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(directory.resolve(name), StandardCharsets.UTF_8)) {
+            final List<String> lines = new ArrayList<>();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+            return lines;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private void prune(long before) throws IOException {
+        for (String suffix : new String[] { SNAPSHOT, DELTA }) {
+            for (long version : listVersions(suffix)) {
+                if (version < before) {
+                    Files.deleteIfExists(directory.resolve(version + suffix));
+                }
+            }
+        }
+    }
+
+    private List<Long> listVersions(String suffix) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        final List<Long> versions = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + suffix)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                try {
+                    versions.add(Long.parseLong(name.substring(0, name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    LOGGER.debug("Ignoring '{}' in the vanity index directory", name);
+                }
+            }
+        }
+        return versions;
+    }
+
+    private static final String SNAPSHOT = ".snapshot";
+    private static final String DELTA = ".delta";
+    private static final String SNAPSHOT_HEADER = "vanity-index";
+    private static final String DELTA_HEADER = "vanity-delta";
+    private static final String PUT = "+";
+    private static final String REMOVE = "-";
+    private static final String TAB = "\t";
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileVanityIndexStore.class);
+}
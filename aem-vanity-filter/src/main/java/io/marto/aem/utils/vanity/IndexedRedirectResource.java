@@ -0,0 +1,62 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.vanity;
+
+import io.marto.aem.utils.vanity.VanityIndex.Redirect;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.SyntheticResource;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+/**
+ * The <code>sling:redirect</code> resource of an indexed vanity path, equivalent to the one {@link ResourceResolver#resolve(String)} returns
+ * for it, so that dispatching to it sends the same redirect.
+ */
+class IndexedRedirectResource extends SyntheticResource {
+
+    private final ValueMap properties;
+
+    IndexedRedirectResource(ResourceResolver resolver, Redirect redirect) {
+        super(resolver, redirect.getPath(), VanityIndex.SLING_REDIRECT);
+        final Map<String, Object> values = new HashMap<>();
+        values.put(VanityIndex.SLING_TARGET, redirect.getTarget());
+        if (redirect.getStatus() > 0) {
+            values.put(VanityIndex.SLING_STATUS, redirect.getStatus());
+        }
+        this.properties = new ValueMapDecorator(values);
+    }
+
+    @Override
+    public ValueMap getValueMap() {
+        return properties;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <AdapterType> AdapterType adaptTo(Class<AdapterType> type) {
+        if (type == ValueMap.class || type == Map.class) {
+            return (AdapterType) properties;
+        }
+        return super.adaptTo(type);
+    }
+}
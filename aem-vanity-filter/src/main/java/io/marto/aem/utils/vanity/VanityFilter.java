@@ -19,15 +19,20 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package io.marto.aem.utils.vanity;
 
 import static org.apache.commons.lang3.StringUtils.endsWith;
-import static org.apache.commons.lang3.StringUtils.removeStart;
+import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.split;
 import static org.apache.commons.lang3.StringUtils.startsWith;
 import static org.apache.commons.lang3.StringUtils.strip;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.Filter;
@@ -40,14 +45,20 @@ import javax.servlet.ServletResponse;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.sling.SlingFilter;
 import org.apache.felix.scr.annotations.sling.SlingFilterScope;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
-import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,7 +71,7 @@ import org.slf4j.LoggerFactory;
         order = 0,
         scope = SlingFilterScope.REQUEST)
 public class VanityFilter implements Filter {
-    private final AtomicReference<Map<String, String[]>> contentPaths = new AtomicReference<>();
+    private final AtomicReference<RootPaths> contentPaths = new AtomicReference<>();
 
     @Property(cardinality = 100, label = "Root Content Paths", description = "List of root content paths eg: [/content/geometrix/, /content/gemoetrix-media/] "
             + "that will be searched for. If there are multiple valid paths for one root path use the following syntax to specify so: "
@@ -68,6 +79,35 @@ public class VanityFilter implements Filter {
             + "'/content/geometrix/=/content/geometrix/'")
     public static final String PROPERTY_SERVICES = "rootPaths";
 
+    @Property(value = "", label = "Vanity Index Directory", description = "A directory shared by all publishers (eg: a shared mount) that holds the published "
+            + "vanity index. When set, vanity paths are looked up in the latest published index instead of the repository. Leave empty to look up vanity "
+            + "paths in the repository on every request")
+    public static final String PROPERTY_INDEX_DIRECTORY = "vanityIndexDirectory";
+
+    @Property(intValue = DEFAULT_INDEX_REFRESH_SECONDS, label = "Vanity Index Refresh", description = "How often (in seconds) to check the vanity index "
+            + "directory for a newer version of the index. The check runs in the background, requests never wait for the directory")
+    public static final String PROPERTY_INDEX_REFRESH = "vanityIndexRefreshSeconds";
+
+    @Property(boolValue = false, label = "Vanity Index Publisher", description = "Whether this node builds the vanity index from its repository and "
+            + "publishes it to the vanity index directory. Enable it on exactly one node, it needs a service user mapping for this bundle that can read "
+            + "every vanity path")
+    public static final String PROPERTY_INDEX_PUBLISHER = "vanityIndexPublisher";
+
+    @Property(intValue = DEFAULT_INDEX_PUBLISH_SECONDS, label = "Vanity Index Publish Interval", description = "How often (in seconds) the publisher "
+            + "rebuilds and publishes the vanity index")
+    public static final String PROPERTY_INDEX_PUBLISH_INTERVAL = "vanityIndexPublishSeconds";
+
+    private static final int DEFAULT_INDEX_REFRESH_SECONDS = 10;
+    private static final int DEFAULT_INDEX_PUBLISH_SECONDS = 300;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindResolverFactory",
+            unbind = "unbindResolverFactory")
+    private volatile ResourceResolverFactory resolverFactory;
+
+    private final AtomicReference<VanityIndex> vanityIndex = new AtomicReference<>();
+    private volatile FileVanityIndexStore indexStore;
+    private ScheduledExecutorService indexScheduler;
+
     @Activate
     @Modified
     protected void configure(final Map<String, ?> config) {
@@ -86,7 +126,159 @@ public class VanityFilter implements Filter {
             }
             newConfig.put(strip(args[0]), paths);
         }
-        contentPaths.set(newConfig);
+        contentPaths.set(new RootPaths(newConfig));
+
+        final String indexDirectory = PropertiesUtil.toString(config.get(PROPERTY_INDEX_DIRECTORY), "");
+        scheduleIndex(isBlank(indexDirectory) ? null : new FileVanityIndexStore(new File(indexDirectory)),
+                PropertiesUtil.toInteger(config.get(PROPERTY_INDEX_REFRESH), DEFAULT_INDEX_REFRESH_SECONDS),
+                PropertiesUtil.toBoolean(config.get(PROPERTY_INDEX_PUBLISHER), false),
+                PropertiesUtil.toInteger(config.get(PROPERTY_INDEX_PUBLISH_INTERVAL), DEFAULT_INDEX_PUBLISH_SECONDS));
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        scheduleIndex(null, 0, false, 0);
+    }
+
+    protected void bindResolverFactory(ResourceResolverFactory factory) {
+        this.resolverFactory = factory;
+    }
+
+    protected void unbindResolverFactory(ResourceResolverFactory factory) {
+        if (this.resolverFactory == factory) {
+            this.resolverFactory = null;
+        }
+    }
+
+    /**
+     * Stop the background work on the current vanity index directory and switch to <code>store</code>. The index is loaded from the store now and
+     * every <code>refreshSeconds</code> from now on, and if <code>publisher</code> it is also published now and every <code>publishSeconds</code>.
+     * Both run on one background thread so that requests never wait for the (possibly remote) directory.
+     */
+    private synchronized void scheduleIndex(final FileVanityIndexStore store, int refreshSeconds, boolean publisher, int publishSeconds) {
+        if (indexScheduler != null) {
+            indexScheduler.shutdownNow();
+            indexScheduler = null;
+        }
+        indexStore = store;
+        vanityIndex.set(null);
+        if (store == null) {
+            return;
+        }
+        indexScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "vanity-index");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        indexScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshIndex(store);
+            }
+        }, 0, Math.max(refreshSeconds, 1), TimeUnit.SECONDS);
+        if (publisher) {
+            indexScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    publishScheduled();
+                }
+            }, 0, Math.max(publishSeconds, 1), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Bring the vanity index up to the latest version in <code>store</code>, unless the filter has moved on to another directory.
+     */
+    synchronized void refreshIndex(FileVanityIndexStore store) {
+        if (store != indexStore) {
+            return;
+        }
+        final VanityIndex current = vanityIndex.get();
+        try {
+            final VanityIndex latest = store.update(current);
+            if (current == null || (latest != null && latest.getVersion() > current.getVersion())) {
+                vanityIndex.set(latest);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to update the vanity index, keeping version {}", current == null ? -1 : current.getVersion(), e);
+        }
+    }
+
+    /**
+     * Bring the vanity index up to the latest version in the vanity index directory.
+     */
+    void refreshIndex() {
+        refreshIndex(indexStore);
+    }
+
+    private void publishScheduled() {
+        final ResourceResolverFactory factory = resolverFactory;
+        if (factory == null) {
+            LOGGER.warn("No resource resolver factory is available, skipping the vanity index publication");
+            return;
+        }
+        ResourceResolver resolver = null;
+        try {
+            resolver = factory.getServiceResourceResolver(null);
+            publishIndex(resolver);
+        } catch (LoginException | IOException | RuntimeException e) {
+            // keep the schedule running, the next run retries
+            LOGGER.warn("Failed to publish the vanity index", e);
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Build the vanity index from the repository and publish it as the next version to the vanity index directory, where the other publishers pick it up.
+     * Only one node should publish the index, the node configured with {@link #PROPERTY_INDEX_PUBLISHER} does so on a schedule. A full snapshot is
+     * always written, so a corrupt or missing previous version only costs the delta to it.
+     *
+     * @param resolver  the resolver used to query the repository for vanity paths
+     * @return the published index
+     * @throws IOException  if the index can't be published
+     */
+    public VanityIndex publishIndex(ResourceResolver resolver) throws IOException {
+        final FileVanityIndexStore store = indexStore;
+        if (store == null) {
+            throw new IllegalStateException("No vanity index directory is configured");
+        }
+        final long latest = store.getLatestVersion();
+        final VanityIndex index = VanityIndex.build(resolver, latest < 0 ? 1 : latest + 1);
+        store.publish(index, readPublished(store, latest));
+        vanityIndex.set(index);
+        LOGGER.info("Published vanity index version {} with {} vanity paths", index.getVersion(), index.getRedirects().size());
+        return index;
+    }
+
+    /**
+     * @return the published index at version <code>latest</code>, or null if there is none or it can't be read
+     */
+    private VanityIndex readPublished(FileVanityIndexStore store, long latest) {
+        if (latest < 0) {
+            return null;
+        }
+        final VanityIndex current = vanityIndex.get();
+        try {
+            final VanityIndex published = current != null && current.getVersion() == latest ? current : store.update(current);
+            return published != null && published.getVersion() == latest ? published : null;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to read vanity index version {}, publishing the next version without a delta", latest, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the latest loaded vanity index, or null if vanity paths should be looked up in the repository (no vanity index directory is
+     *         configured, or no index has been loaded from it yet). Never touches the vanity index directory.
+     */
+    VanityIndex getVanityIndex() {
+        return vanityIndex.get();
     }
 
     @Override
@@ -99,12 +291,16 @@ public class VanityFilter implements Filter {
     }
 
     private void doFilterImpl(SlingHttpServletRequest req, SlingHttpServletResponse res, FilterChain chain) throws IOException, ServletException {
-        if (contentPaths.get() != null) {
-            final RequestPathInfo pi = req.getRequestPathInfo();
-            for (Entry<String, String[]> entry: contentPaths.get().entrySet()) {
-                final RequestDispatcher dispatcher = evaluate(req, pi, entry.getKey(), entry.getValue());
+        final RootPaths rootPaths = contentPaths.get();
+        if (rootPaths != null) {
+            final String resourcePath = req.getRequestPathInfo().getResourcePath();
+            for (int i = rootPaths.indexOf(resourcePath, 0); i >= 0; i = rootPaths.indexOf(resourcePath, i + 1)) {
+                final VanityIndex index = getVanityIndex();
+                final String vanity = rootPaths.getVanity(i, resourcePath);
+                final RequestDispatcher dispatcher = index != null
+                        ? evaluate(req, index, vanity, rootPaths.allowedPaths[i]) : evaluate(req, vanity, rootPaths.allowedPaths[i]);
                 if (dispatcher != null) {
-                    LOGGER.debug("Found vanity path at '{}'", entry.getKey());
+                    LOGGER.debug("Found vanity path at '{}'", rootPaths.prefixes[i]);
                     dispatcher.forward(req, res);
                     return;
                 }
@@ -114,29 +310,33 @@ public class VanityFilter implements Filter {
         chain.doFilter(req, res);
     }
 
-    private RequestDispatcher evaluate(SlingHttpServletRequest req, final RequestPathInfo pi, String prefix, String[] allowedPaths) {
-        final Resource resource = req.getResourceResolver().resolve(getVanityFromPrefixedPath(prefix, pi));
-        if (pi.getResourcePath().startsWith(prefix)) {
-            if (isVanity(resource, allowedPaths)) {
-                return req.getRequestDispatcher(resource);
-            }
+    private RequestDispatcher evaluate(SlingHttpServletRequest req, String vanity, String[] allowedPaths) {
+        final Resource resource = req.getResourceResolver().resolve(vanity);
+        if (isVanity(resource, allowedPaths)) {
+            return req.getRequestDispatcher(resource);
         }
         return null;
     }
 
-    private String getVanityFromPrefixedPath(String prefix, final RequestPathInfo pi) {
-        final String vanity = removeStart(pi.getResourcePath(), prefix);
-        return endsWith(prefix, "/") ? "/" + vanity : vanity;
+    private RequestDispatcher evaluate(SlingHttpServletRequest req, VanityIndex index, String vanity, String[] allowedPaths) {
+        final VanityIndex.Redirect redirect = index.getRedirect(vanity);
+        if (redirect != null && isAllowed(redirect.getTarget(), allowedPaths)) {
+            return req.getRequestDispatcher(new IndexedRedirectResource(req.getResourceResolver(), redirect));
+        }
+        return null;
     }
 
     /**
      * @return true if the resource is a vanity <code>redirect</code> and the target starts with <code>prefix</code>, false otherwise
      */
     private boolean isVanity(Resource resource, String[] allowedPaths) {
-        if (!StringUtils.equals(resource.getResourceType(), SLING_REDIRECT)) {
+        if (!StringUtils.equals(resource.getResourceType(), VanityIndex.SLING_REDIRECT)) {
             return false;
         }
-        String target = resource.getValueMap().get(SLING_TARGET, String.class);
+        return isAllowed(resource.getValueMap().get(VanityIndex.SLING_TARGET, String.class), allowedPaths);
+    }
+
+    private boolean isAllowed(String target, String[] allowedPaths) {
         for (String path : allowedPaths) {
             if (startsWith(target, path)) {
                 return true;
@@ -149,7 +349,51 @@ public class VanityFilter implements Filter {
     public void destroy() {
     }
 
-    private static final String SLING_TARGET = "sling:target";
-    private static final String SLING_REDIRECT = "sling:redirect";
+    /**
+     * The configured root paths precompiled into parallel arrays so that matching a request path does not allocate.
+     */
+    static final class RootPaths {
+        private final String[] prefixes;
+        private final String[][] allowedPaths;
+        private final boolean[] slashTerminated;
+
+        RootPaths(Map<String, String[]> config) {
+            final int size = config.size();
+            this.prefixes = new String[size];
+            this.allowedPaths = new String[size][];
+            this.slashTerminated = new boolean[size];
+            int i = 0;
+            for (Entry<String, String[]> entry : config.entrySet()) {
+                prefixes[i] = entry.getKey();
+                allowedPaths[i] = entry.getValue();
+                slashTerminated[i] = endsWith(entry.getKey(), "/");
+                i++;
+            }
+        }
+
+        /**
+         * @return the index of the first root path at or after <code>from</code> that prefixes <code>resourcePath</code>, or -1 if there is none
+         */
+        int indexOf(String resourcePath, int from) {
+            if (resourcePath == null) {
+                return -1;
+            }
+            for (int i = from; i < prefixes.length; i++) {
+                if (resourcePath.startsWith(prefixes[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the vanity part of <code>resourcePath</code> for the root path at <code>index</code>, always starting with a slash when the root path ends with one
+         */
+        String getVanity(int index, String resourcePath) {
+            final int offset = prefixes[index].length();
+            return resourcePath.substring(slashTerminated[index] ? offset - 1 : offset);
+        }
+    }
+
     private static final Logger LOGGER = LoggerFactory.getLogger(VanityFilter.class);
 }
@@ -0,0 +1,161 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.vanity;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.jcr.query.Query;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * An immutable, versioned snapshot of the redirect every vanity path resolves to. One node builds it from the repository and publishes it
+ * through a {@link FileVanityIndexStore}, other nodes load it instead of each resolving vanity paths against their own repository.
+ */
+public final class VanityIndex {
+    private final long version;
+    private final Map<String, Redirect> redirects;
+
+    /**
+     * @param version    the version of the index, versions only ever increase
+     * @param redirects  the redirect each vanity path resolves to
+     */
+    public VanityIndex(long version, Map<String, Redirect> redirects) {
+        this.version = version;
+        this.redirects = Collections.unmodifiableMap(new HashMap<>(redirects));
+    }
+
+    /**
+     * Build an index of every <code>sling:vanityPath</code> in the repository that the resolver resolves to a <code>sling:redirect</code>,
+     * recording the redirect exactly as {@link ResourceResolver#resolve(String)} returns it.
+     *
+     * @param resolver  the resolver used to query the repository and resolve the vanity paths
+     * @param version   the version of the new index
+     * @return the index
+     */
+    public static VanityIndex build(ResourceResolver resolver, long version) {
+        final Map<String, Redirect> redirects = new HashMap<>();
+        final Iterator<Resource> resources = resolver.findResources(VANITY_QUERY, Query.JCR_SQL2);
+        while (resources.hasNext()) {
+            for (String vanity : resources.next().getValueMap().get(SLING_VANITY_PATH, new String[0])) {
+                final String path = vanity.startsWith("/") ? vanity : "/" + vanity;
+                final Resource resolved = resolver.resolve(path);
+                if (!SLING_REDIRECT.equals(resolved.getResourceType())) {
+                    continue;
+                }
+                final ValueMap properties = resolved.getValueMap();
+                final String target = properties.get(SLING_TARGET, String.class);
+                final Integer status = properties.get(SLING_STATUS, Integer.class);
+                if (target != null) {
+                    redirects.put(path, new Redirect(resolved.getPath(), target, status == null ? 0 : status));
+                }
+            }
+        }
+        return new VanityIndex(version, redirects);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param vanity  the vanity path, eg: <code>/MyVanity</code>
+     * @return the redirect the vanity path resolves to, or null if it isn't a vanity path
+     */
+    public Redirect getRedirect(String vanity) {
+        return redirects.get(vanity);
+    }
+
+    /**
+     * @return the redirect each vanity path resolves to
+     */
+    public Map<String, Redirect> getRedirects() {
+        return redirects;
+    }
+
+    /**
+     * @return a new index with <code>delta</code> applied, or null if <code>delta</code> does not follow this version of the index
+     */
+    public VanityIndex apply(VanityIndexDelta delta) {
+        if (delta.getBaseVersion() != version) {
+            return null;
+        }
+        final Map<String, Redirect> applied = new HashMap<>(redirects);
+        applied.keySet().removeAll(delta.getRemoved());
+        applied.putAll(delta.getPut());
+        return new VanityIndex(delta.getVersion(), applied);
+    }
+
+    /**
+     * A <code>sling:redirect</code> resource as resolved for a vanity path.
+     */
+    public static final class Redirect {
+        private final String path;
+        private final String target;
+        private final int status;
+
+        /**
+         * @param path    the path of the redirect resource
+         * @param target  its <code>sling:target</code>
+         * @param status  its <code>sling:status</code>, or 0 if it has none
+         */
+        public Redirect(String path, String target, int status) {
+            this.path = path;
+            this.target = target;
+            this.status = status;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * path.hashCode() + target.hashCode()) + status;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Redirect)) {
+                return false;
+            }
+            final Redirect other = (Redirect) obj;
+            return path.equals(other.path) && target.equals(other.target) && status == other.status;
+        }
+    }
+
+    static final String SLING_TARGET = "sling:target";
+    static final String SLING_STATUS = "sling:status";
+    static final String SLING_REDIRECT = "sling:redirect";
+    private static final String SLING_VANITY_PATH = "sling:vanityPath";
+    private static final String VANITY_QUERY = "SELECT * FROM [nt:base] AS n WHERE n.[" + SLING_VANITY_PATH + "] IS NOT NULL";
+}
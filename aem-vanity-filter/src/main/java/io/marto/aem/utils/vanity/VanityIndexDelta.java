@@ -0,0 +1,88 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.vanity;
+
+import io.marto.aem.utils.vanity.VanityIndex.Redirect;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * The changes between two consecutive versions of a {@link VanityIndex}.
+ */
+public final class VanityIndexDelta {
+    private final long baseVersion;
+    private final long version;
+    private final Map<String, Redirect> put;
+    private final Set<String> removed;
+
+    public VanityIndexDelta(long baseVersion, long version, Map<String, Redirect> put, Set<String> removed) {
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.put = Collections.unmodifiableMap(new HashMap<>(put));
+        this.removed = Collections.unmodifiableSet(new HashSet<>(removed));
+    }
+
+    /**
+     * @return the changes that turn <code>from</code> into <code>to</code>
+     */
+    public static VanityIndexDelta between(VanityIndex from, VanityIndex to) {
+        final Map<String, Redirect> put = new HashMap<>();
+        for (Entry<String, Redirect> entry : to.getRedirects().entrySet()) {
+            if (!entry.getValue().equals(from.getRedirect(entry.getKey()))) {
+                put.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final Set<String> removed = new HashSet<>(from.getRedirects().keySet());
+        removed.removeAll(to.getRedirects().keySet());
+        return new VanityIndexDelta(from.getVersion(), to.getVersion(), put, removed);
+    }
+
+    /**
+     * @return the version of the index the delta applies to
+     */
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    /**
+     * @return the version of the index once the delta is applied
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the vanity paths that were added or now lead somewhere else
+     */
+    public Map<String, Redirect> getPut() {
+        return put;
+    }
+
+    /**
+     * @return the vanity paths that were removed
+     */
+    public Set<String> getRemoved() {
+        return removed;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.vanity;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the {@link VanityFilterTest} scenarios against a filter that looks vanity paths up in a published vanity index instead of the repository.
+ */
+public class IndexedVanityFilterTest extends VanityFilterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Resource> vanityContent = new ArrayList<>();
+
+    @After
+    public void teardown() {
+        filter.deactivate();
+    }
+
+    @Override
+    protected Resource givenVanity(String vanityPath, String target) {
+        final Resource vanityResource = super.givenVanity(vanityPath, target);
+        when(vanityResource.getPath()).thenReturn("/" + vanityPath);
+        final Resource content = mock(Resource.class);
+        when(content.getValueMap()).thenReturn(
+                new ValueMapDecorator(Collections.<String, Object>singletonMap("sling:vanityPath", new String[] { vanityPath })));
+        vanityContent.add(content);
+        return vanityResource;
+    }
+
+    @Override
+    protected VanityFilterTest whenFilterSetupWith(String... rootPaths) {
+        if (rootPaths.length > 0) {
+            final VanityFilter publisher = new VanityFilter();
+            publisher.configure(config(rootPaths));
+            when(resolver.findResources(anyString(), eq("JCR-SQL2"))).thenReturn(vanityContent.iterator());
+            try {
+                publisher.publishIndex(resolver);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                publisher.deactivate();
+            }
+            filter.configure(config(rootPaths));
+            filter.refreshIndex();
+        }
+        return this;
+    }
+
+    @Override
+    protected void andCalledWith(String path) throws IOException, ServletException {
+        super.andCalledWith(path);
+        // only the publisher resolved the vanity paths, the filter served them from the index
+        verify(resolver, times(vanityContent.size())).resolve(anyString());
+    }
+
+    private Map<String, Object> config(String... rootPaths) {
+        final Map<String, Object> config = new HashMap<>();
+        config.put(VanityFilter.PROPERTY_SERVICES, rootPaths);
+        config.put(VanityFilter.PROPERTY_INDEX_DIRECTORY, folder.getRoot().getAbsolutePath());
+        config.put(VanityFilter.PROPERTY_INDEX_REFRESH, 3600);
+        return config;
+    }
+}
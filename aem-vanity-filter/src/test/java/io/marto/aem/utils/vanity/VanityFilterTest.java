@@ -19,6 +19,8 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package io.marto.aem.utils.vanity;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -28,11 +30,17 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Collections;
 
 import javax.servlet.FilterChain;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -52,7 +60,7 @@ import org.mockito.stubbing.Answer;
 @RunWith(MockitoJUnitRunner.class)
 public class VanityFilterTest {
 
-    private VanityFilter filter = new VanityFilter();
+    protected final VanityFilter filter = new VanityFilter();
 
     @Mock
     private FilterChain chain;
@@ -64,7 +72,7 @@ public class VanityFilterTest {
     private SlingHttpServletRequest request;
 
     @Mock
-    private ResourceResolver resolver;
+    protected ResourceResolver resolver;
 
     @Mock
     private RequestDispatcher dispatcher;
@@ -156,6 +164,54 @@ public class VanityFilterTest {
         thenRequestIsPassedThrough();
     }
 
+    @Test
+    public void testNonMatchingRequestDoesNotAllocate() throws IOException, ServletException {
+        whenFilterSetupWith("/content/geometrix/", "/content/geometrix-media");
+        // Mockito records every invocation, so the request and chain are allocation free stubs instead of mocks
+        final RequestPathInfo pathInfo = stub(RequestPathInfo.class, "getResourcePath", "/content/other/some-page");
+        final SlingHttpServletRequest nonMatching = stub(SlingHttpServletRequest.class, "getRequestPathInfo", pathInfo);
+        final CountingChain passedThrough = new CountingChain();
+
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        final long threadId = Thread.currentThread().getId();
+
+        final int iterations = 100000;
+        doFilter(nonMatching, passedThrough, iterations);
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        doFilter(nonMatching, passedThrough, iterations);
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(2 * iterations, passedThrough.count);
+        // a few bytes of slack for the allocation counter itself, far less than one byte per request
+        assertTrue("bytes allocated by " + iterations + " requests: " + allocated, allocated < 1024);
+    }
+
+    private void doFilter(SlingHttpServletRequest req, FilterChain passThrough, int iterations) throws IOException, ServletException {
+        for (int i = 0; i < iterations; i++) {
+            filter.doFilter(req, response, passThrough);
+        }
+    }
+
+    private static <T> T stub(Class<T> type, final String method, final Object value) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method invoked, Object[] args) {
+                return method.equals(invoked.getName()) ? value : null;
+            }
+        }));
+    }
+
+    private static final class CountingChain implements FilterChain {
+        private int count;
+
+        @Override
+        public void doFilter(ServletRequest req, ServletResponse res) {
+            count++;
+        }
+    }
+
     private void thenRequestIsPassedThrough() throws IOException, ServletException {
         verify(chain, times(1)).doFilter(request, response);
     }
@@ -168,14 +224,14 @@ public class VanityFilterTest {
         verify(chain, times(0)).doFilter(request, response);
     }
 
-    private VanityFilterTest whenFilterSetupWith(String ... rootPaths) {
+    protected VanityFilterTest whenFilterSetupWith(String ... rootPaths) {
         if (rootPaths.length > 0) {
             filter.configure(Collections.singletonMap("rootPaths", rootPaths));
         }
         return this;
     }
 
-    private void andCalledWith(String path) throws IOException, ServletException {
+    protected void andCalledWith(String path) throws IOException, ServletException {
         RequestPathInfo pi = mock(RequestPathInfo.class);
         when(request.getRequestPathInfo()).thenReturn(pi);
         when(pi.getResourcePath()).thenReturn(path);
@@ -183,12 +239,13 @@ public class VanityFilterTest {
         filter.doFilter(request, response, chain);
     }
 
-    private void givenVanity(String vanityPath, String target) {
+    protected Resource givenVanity(String vanityPath, String target) {
         final Resource vanityResource = mock(Resource.class);
         when(vanityResource.getResourceType()).thenReturn("sling:redirect");
         ValueMap valueMap = valueMap("sling:target", target);
         when(vanityResource.getValueMap()).thenReturn(valueMap);
         when(resolver.resolve(eq("/"+vanityPath))).thenReturn(vanityResource);
+        return vanityResource;
     }
 
     private ValueMap valueMap(String key, String target) {
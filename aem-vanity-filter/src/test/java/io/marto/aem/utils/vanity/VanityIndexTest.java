@@ -0,0 +1,365 @@
+/*
+Copyright (c) 2015-2016 "Martin Petrovsky"
+
+This file is part of aem-utils (marto.io).
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package io.marto.aem.utils.vanity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import io.marto.aem.utils.vanity.VanityIndex.Redirect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Several filters (standing in for several publishers) sharing one vanity index directory.
+ */
+public class VanityIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, String> vanities = new HashMap<>();
+    private final Map<String, String> unresolved = new HashMap<>();
+    private final List<VanityFilter> filters = new ArrayList<>();
+
+    @After
+    public void teardown() {
+        for (VanityFilter filter : filters) {
+            filter.deactivate();
+        }
+    }
+
+    @Test
+    public void testPublishedIndexIsUsedByOtherNodes() throws IOException, ServletException {
+        final VanityFilter publisher = filter();
+        final VanityFilter other = filter();
+        vanities.put("/MyVanity", "/content/geometrix/vanity-target-page");
+
+        assertEquals(1, publisher.publishIndex(repository()).getVersion());
+        other.refreshIndex();
+
+        final ResourceResolver otherResolver = mock(ResourceResolver.class);
+        final RequestDispatcher dispatcher = whenCalledWith(other, otherResolver, "/content/geometrix/MyVanity", "/content/geometrix/vanity-target-page");
+        verify(dispatcher).forward(any(SlingHttpServletRequest.class), any(SlingHttpServletResponse.class));
+        verify(otherResolver, never()).resolve(anyString());
+    }
+
+    @Test
+    public void testVanityOutsideAllowedPathsIsPassedThrough() throws IOException, ServletException {
+        final VanityFilter publisher = filter();
+        final VanityFilter other = filter();
+        vanities.put("/MyVanity", "/content/geometrix-other/vanity-target-page");
+        publisher.publishIndex(repository());
+        other.refreshIndex();
+
+        final ResourceResolver otherResolver = mock(ResourceResolver.class);
+        final FilterChain chain = mock(FilterChain.class);
+        final SlingHttpServletRequest request = request(otherResolver, "/content/geometrix/MyVanity");
+        final SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        other.doFilter(request, response, chain);
+
+        verify(chain, times(1)).doFilter(request, response);
+        verify(otherResolver, never()).resolve(anyString());
+    }
+
+    @Test
+    public void testNodesApplyDeltas() throws IOException {
+        final VanityFilter publisher = filter();
+        final VanityFilter other = filter();
+        vanities.put("/MyVanity", "/content/geometrix/vanity-target-page");
+        vanities.put("/Removed", "/content/geometrix/removed-page");
+        publisher.publishIndex(repository());
+        other.refreshIndex();
+        final VanityIndex first = other.getVanityIndex();
+
+        vanities.remove("/Removed");
+        vanities.put("/NewVanity", "/content/geometrix/new-page");
+        publisher.publishIndex(repository());
+        other.refreshIndex();
+        final VanityIndex second = other.getVanityIndex();
+
+        assertEquals(1, first.getVersion());
+        assertEquals(2, second.getVersion());
+        assertEquals(new Redirect("/NewVanity", "/content/geometrix/new-page", 302), second.getRedirect("/NewVanity"));
+        assertNull(second.getRedirect("/Removed"));
+        assertEquals(publisher.getVanityIndex().getRedirects(), second.getRedirects());
+    }
+
+    @Test
+    public void testIndexIsRefreshedInTheBackground() throws IOException, InterruptedException {
+        final VanityFilter publisher = filter();
+        vanities.put("/MyVanity", "/content/geometrix/vanity-target-page");
+        publisher.publishIndex(repository());
+        final VanityFilter other = new VanityFilter();
+        filters.add(other);
+        final Map<String, Object> config = config();
+        config.put(VanityFilter.PROPERTY_INDEX_REFRESH, 1);
+        other.configure(config);
+
+        assertEquals(1, awaitVersion(other, 1));
+        vanities.put("/NewVanity", "/content/geometrix/new-page");
+        publisher.publishIndex(repository());
+        assertEquals(2, awaitVersion(other, 2));
+    }
+
+    @Test
+    public void testPublisherRepairsCorruptSnapshot() throws IOException {
+        vanities.put("/MyVanity", "/content/geometrix/vanity-target-page");
+        filter().publishIndex(repository());
+        final File shared = new File(folder.getRoot(), "shared");
+        Files.write(new File(shared, "1.snapshot").toPath(), Arrays.asList("vanity-index\t1", "/MyVanity"), StandardCharsets.UTF_8);
+
+        // a restarted publisher only has the corrupt snapshot to go on
+        vanities.put("/NewVanity", "/content/geometrix/new-page");
+        final VanityIndex repaired = filter().publishIndex(repository());
+
+        assertEquals(2, repaired.getVersion());
+        assertFalse(new File(shared, "2.delta").exists());
+        assertEquals(repaired.getRedirects(), new FileVanityIndexStore(shared).update(null).getRedirects());
+    }
+
+    @Test
+    public void testOnlyVanitiesResolvingToRedirectsAreIndexed() throws IOException {
+        vanities.put("/MyVanity", "/content/geometrix/vanity-target-page");
+        unresolved.put("/Shadowed", "/content/geometrix/shadowed-page");
+
+        final VanityIndex index = filter().publishIndex(repository());
+
+        assertEquals(Collections.singletonMap("/MyVanity", new Redirect("/MyVanity", "/content/geometrix/vanity-target-page", 302)),
+                index.getRedirects());
+    }
+
+    @Test
+    public void testStoreLoadsSnapshotWhenDeltasAreMissing() throws IOException {
+        final File directory = folder.newFolder("index");
+        final FileVanityIndexStore store = new FileVanityIndexStore(directory);
+        VanityIndex previous = null;
+        for (int version = 1; version <= 3; version++) {
+            final Redirect redirect = new Redirect("/v" + version, "/content/page" + version, 0);
+            final VanityIndex index = new VanityIndex(version, Collections.singletonMap(redirect.getPath(), redirect));
+            store.publish(index, previous);
+            previous = index;
+        }
+        new File(directory, "2.delta").delete();
+
+        final VanityIndex stale = new VanityIndex(1, Collections.singletonMap("/v1", new Redirect("/v1", "/content/page1", 0)));
+        assertEquals(previous.getRedirects(), store.update(stale).getRedirects());
+        assertEquals(3, store.update(null).getVersion());
+        assertSame(previous, store.update(previous));
+    }
+
+    @Test
+    public void testValuesWithSeparatorsAreEscaped() throws IOException {
+        final File directory = folder.newFolder("index");
+        final String vanity = "/tab\there\\t";
+        final Redirect redirect = new Redirect(vanity, "/content/line\nbreak\r", 301);
+        new FileVanityIndexStore(directory).publish(new VanityIndex(1, Collections.singletonMap(vanity, redirect)), null);
+
+        assertEquals(Collections.singletonMap(vanity, redirect), new FileVanityIndexStore(directory).update(null).getRedirects());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptSnapshotFailsUpdate() throws IOException {
+        final File directory = folder.newFolder("index");
+        Files.write(new File(directory, "1.snapshot").toPath(), Arrays.asList("vanity-index\t1", "/MyVanity\t/content/page"), StandardCharsets.UTF_8);
+
+        new FileVanityIndexStore(directory).update(null);
+    }
+
+    @Test
+    public void testCorruptDeltaFallsBackToSnapshot() throws IOException {
+        final File directory = folder.newFolder("index");
+        final FileVanityIndexStore store = new FileVanityIndexStore(directory);
+        final VanityIndex first = new VanityIndex(1, Collections.singletonMap("/v1", new Redirect("/v1", "/content/page1", 0)));
+        final VanityIndex second = new VanityIndex(2, Collections.singletonMap("/v2", new Redirect("/v2", "/content/page2", 0)));
+        store.publish(first, null);
+        store.publish(second, first);
+        Files.write(new File(directory, "2.delta").toPath(), Arrays.asList("vanity-delta\t1\t2", "+\t/v2\t/v2\t/content/page2\tmoved"),
+                StandardCharsets.UTF_8);
+
+        assertEquals(second.getRedirects(), store.update(first).getRedirects());
+    }
+
+    @Test
+    public void testPublisherPublishesOnSchedule() throws IOException, ServletException, InterruptedException, LoginException {
+        vanities.put("/MyVanity", "/content/geometrix/vanity-target-page");
+        final ResourceResolverFactory factory = mock(ResourceResolverFactory.class);
+        final ResourceResolver repository = repository();
+        when(factory.getServiceResourceResolver(null)).thenReturn(repository);
+        final VanityFilter publisher = new VanityFilter();
+        publisher.bindResolverFactory(factory);
+        final Map<String, Object> config = config();
+        config.put(VanityFilter.PROPERTY_INDEX_PUBLISHER, true);
+        config.put(VanityFilter.PROPERTY_INDEX_PUBLISH_INTERVAL, 3600);
+        publisher.configure(config);
+        try {
+            final FileVanityIndexStore store = new FileVanityIndexStore(new File(folder.getRoot(), "shared"));
+            for (int i = 0; i < 500 && store.getLatestVersion() < 1; i++) {
+                Thread.sleep(10);
+            }
+            final VanityFilter other = filter();
+            other.refreshIndex();
+            final ResourceResolver otherResolver = mock(ResourceResolver.class);
+            final RequestDispatcher dispatcher = whenCalledWith(other, otherResolver, "/content/geometrix/MyVanity", "/content/geometrix/vanity-target-page");
+            verify(dispatcher).forward(any(SlingHttpServletRequest.class), any(SlingHttpServletResponse.class));
+            verify(repository, timeout(1000)).close();
+        } finally {
+            publisher.deactivate();
+        }
+    }
+
+    @Test
+    public void testNothingPublished() throws IOException {
+        assertNull(filter().getVanityIndex());
+        assertNull(new FileVanityIndexStore(new File(folder.getRoot(), "missing")).update(null));
+    }
+
+    /**
+     * @return a filter that only picks up a newer index when the test calls {@link VanityFilter#refreshIndex()}
+     */
+    private VanityFilter filter() {
+        final VanityFilter filter = new VanityFilter();
+        filters.add(filter);
+        filter.configure(config());
+        return filter;
+    }
+
+    private Map<String, Object> config() {
+        final Map<String, Object> config = new HashMap<>();
+        config.put(VanityFilter.PROPERTY_SERVICES, new String[] { "/content/geometrix/" });
+        config.put(VanityFilter.PROPERTY_INDEX_DIRECTORY, new File(folder.getRoot(), "shared").getAbsolutePath());
+        config.put(VanityFilter.PROPERTY_INDEX_REFRESH, 3600);
+        return config;
+    }
+
+    private static long awaitVersion(VanityFilter filter, long version) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            final VanityIndex index = filter.getVanityIndex();
+            if (index != null && index.getVersion() >= version) {
+                return index.getVersion();
+            }
+            Thread.sleep(10);
+        }
+        return -1;
+    }
+
+    private ResourceResolver repository() {
+        final Map<String, String> declared = new HashMap<>(vanities);
+        declared.putAll(unresolved);
+        final List<Resource> resources = new ArrayList<>();
+        for (Map.Entry<String, String> vanity : declared.entrySet()) {
+            final Resource page = mock(Resource.class);
+            when(page.getPath()).thenReturn(vanity.getValue());
+            final Resource content = mock(Resource.class);
+            when(content.getName()).thenReturn("jcr:content");
+            when(content.getParent()).thenReturn(page);
+            final ValueMap properties = mock(ValueMap.class);
+            when(properties.get(eq("sling:vanityPath"), any(String[].class))).thenReturn(new String[] { vanity.getKey() });
+            when(content.getValueMap()).thenReturn(properties);
+            resources.add(content);
+        }
+        final ResourceResolver resolver = mock(ResourceResolver.class);
+        when(resolver.findResources(anyString(), eq("JCR-SQL2"))).thenReturn(resources.iterator());
+        when(resolver.resolve(anyString())).thenAnswer(new Answer<Resource>() {
+            @Override
+            public Resource answer(InvocationOnMock invocation) throws Throwable {
+                final String path = invocation.getArgumentAt(0, String.class);
+                final String target = vanities.get(path);
+                if (target == null) {
+                    return new NonExistingResource(resolver, path);
+                }
+                final Map<String, Object> properties = new HashMap<>();
+                properties.put("sling:target", target);
+                properties.put("sling:status", 302);
+                final Resource redirect = mock(Resource.class);
+                when(redirect.getPath()).thenReturn(path);
+                when(redirect.getResourceType()).thenReturn("sling:redirect");
+                when(redirect.getValueMap()).thenReturn(new ValueMapDecorator(properties));
+                return redirect;
+            }
+        });
+        return resolver;
+    }
+
+    private RequestDispatcher whenCalledWith(VanityFilter filter, ResourceResolver resolver, String path, final String target)
+            throws IOException, ServletException {
+        final RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+        final SlingHttpServletRequest request = request(resolver, path);
+        when(request.getRequestDispatcher(any(Resource.class))).thenAnswer(new Answer<RequestDispatcher>() {
+            @Override
+            public RequestDispatcher answer(InvocationOnMock invocation) throws Throwable {
+                final Resource redirect = invocation.getArgumentAt(0, Resource.class);
+                assertEquals("sling:redirect", redirect.getResourceType());
+                assertEquals(target, redirect.getValueMap().get("sling:target", String.class));
+                assertEquals(Integer.valueOf(302), redirect.getValueMap().get("sling:status", Integer.class));
+                return dispatcher;
+            }
+        });
+        filter.doFilter(request, mock(SlingHttpServletResponse.class), mock(FilterChain.class));
+        return dispatcher;
+    }
+
+    private static SlingHttpServletRequest request(ResourceResolver resolver, String path) {
+        final SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        final RequestPathInfo pi = mock(RequestPathInfo.class);
+        when(pi.getResourcePath()).thenReturn(path);
+        when(request.getRequestPathInfo()).thenReturn(pi);
+        when(request.getResourceResolver()).thenReturn(resolver);
+        return request;
+    }
+}